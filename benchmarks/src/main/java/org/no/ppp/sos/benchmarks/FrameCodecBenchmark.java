@@ -0,0 +1,85 @@
+package org.no.ppp.sos.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.no.ppp.sos.model.FrameCodec;
+import org.no.ppp.sos.model.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Encodes and decodes a single data frame. The sizes are a keystroke, a TCP segment, a typical read of the channel and
+ * the largest read of the pump.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FrameCodecBenchmark {
+
+    @Param({ "json", "binary", "binary+crc" })
+    public String format;
+
+    @Param({ "64", "1460", "16384", "65536" })
+    public int size;
+
+    private FrameCodec codec;
+
+    private Packet packet;
+
+    private ByteBuf encoded;
+
+    private ByteBuf out;
+
+    @Setup
+    public void setUp() {
+        codec = FrameCodec.of(format.replace("+crc", ""), format.endsWith("+crc"));
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        packet = new Packet(7).setData(payload);
+        encoded = Unpooled.buffer();
+        codec.encode(packet, encoded);
+        out = Unpooled.buffer(encoded.readableBytes());
+    }
+
+    @TearDown
+    public void tearDown() {
+        packet.release();
+        encoded.release();
+        out.release();
+    }
+
+    @Benchmark
+    public ByteBuf encode() {
+        out.clear();
+        codec.encode(packet, out);
+        return out;
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        encoded.readerIndex(0);
+        Packet decoded = codec.decode(encoded);
+        int length = decoded.getLength();
+        decoded.release();
+        return length;
+    }
+
+}
@@ -0,0 +1,446 @@
+package org.no.ppp.sos.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.core.lookup.MainMapLookup;
+import org.no.ppp.sos.model.FrameCodec;
+import org.no.ppp.sos.server.HandlerBase;
+import org.no.ppp.sos.server.HandlerClient;
+import org.no.ppp.sos.server.HandlerServer;
+import org.no.ppp.sos.util.Durability;
+import org.no.ppp.sos.util.FecInputStream;
+import org.no.ppp.sos.util.FecOutputStream;
+import org.no.ppp.sos.util.FileTailInputStream;
+import org.no.ppp.sos.util.GroupCommitOutputStream;
+import org.no.ppp.sos.util.Histogram;
+import org.no.ppp.sos.util.LinkEmulator;
+import org.no.ppp.sos.util.ReliableLink;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+/**
+ * End-to-end load test in one process: the server and client sides of the tunnel are connected by pipes or tmpfs files
+ * and the client side targets a local echo or sink server. The load generator opens the given number of concurrent
+ * connections to the server side, pushes the messages through them and reports the throughput, the round-trip latency
+ * of the messages (echo only) and the connection setup time, i.e. the connect and the first round trip. The same load
+ * with fewer messages is run once before the measurement, so the numbers are not dominated by the warm-up of the JVM.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.no.ppp.sos.benchmarks.LoadHarness --connections 64 --size 1460 -f binary
+ * </pre>
+ */
+public class LoadHarness {
+
+    public static void main(String[] arguments) throws Exception {
+
+        Options options = new Options()
+            .addOption(option("h", "help", false))
+            .addOption(option("v", "verbose", false))
+            .addOption(option(null, "link", true))
+            .addOption(option(null, "target", true))
+            .addOption(option(null, "connections", true))
+            .addOption(option(null, "messages", true))
+            .addOption(option(null, "warmup", true))
+            .addOption(option(null, "size", true))
+            .addOption(option(null, "payload", true))
+            .addOption(option(null, "emulate", true))
+            .addOption(option(null, "fec", true))
+            .addOption(option(null, "reliable", false))
+            .addOption(option("f", "format", true))
+            .addOption(option(null, "crc", false))
+            .addOption(option("z", "compress", false))
+            .addOption(option(null, "window", true))
+            .addOption(option(null, "batch-bytes", true))
+            .addOption(option(null, "linger-micros", true))
+            .addOption(option(null, "coalesce-bytes", true))
+            .addOption(option(null, "coalesce-micros", true))
+        ;
+
+        LoadHarness harness = new LoadHarness();
+        try {
+            CommandLine cl = new DefaultParser().parse(options, arguments);
+            if (cl.hasOption("h")) {
+                help(options, null);
+            }
+            MainMapLookup.setMainArguments(cl.hasOption("v") ? "info" : "warn");
+
+            harness.link = cl.getOptionValue("link", "pipe");
+            harness.echo = cl.getOptionValue("target", "echo").equals("echo");
+            harness.connections = Integer.valueOf(cl.getOptionValue("connections", "16"));
+            harness.messages = Integer.valueOf(cl.getOptionValue("messages", "1000"));
+            harness.warmup = Integer.valueOf(cl.getOptionValue("warmup", "100"));
+            harness.payload = payload(cl.getOptionValue("payload", "random"), Integer.valueOf(cl.getOptionValue("size", "1024")));
+
+            if (cl.hasOption("emulate")) {
+                harness.emulator = LinkEmulator.of(cl.getOptionValue("emulate"));
+            }
+            if (cl.hasOption("fec")) {
+                String[] ratio = cl.getOptionValue("fec").split(":");
+                harness.fec = new int[] { Integer.valueOf(ratio[0]), ratio.length > 1 ? Integer.valueOf(ratio[1]) : 1 };
+            }
+            harness.reliable = cl.hasOption("reliable");
+
+            String format = cl.getOptionValue("f", "binary");
+            boolean crc = cl.hasOption("crc");
+            try {
+                FrameCodec.of(format, crc);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            harness.frameCodec = () -> FrameCodec.of(format, crc);
+            harness.compression = cl.hasOption("z");
+            harness.windowSize = Integer.valueOf(cl.getOptionValue("window", String.valueOf(HandlerBase.DEFAULT_WINDOW_SIZE)));
+            if (harness.windowSize < HandlerBase.MIN_WINDOW_SIZE) {
+                throw new ParseException("Illegal window: " + harness.windowSize);
+            }
+            harness.maxBatchBytes = Integer.valueOf(cl.getOptionValue("batch-bytes", "65536"));
+            harness.maxLingerMicros = Long.valueOf(cl.getOptionValue("linger-micros", "0"));
+            harness.coalesceBytes = Integer.valueOf(cl.getOptionValue("coalesce-bytes", "1024"));
+            harness.coalesceMicros = Long.valueOf(cl.getOptionValue("coalesce-micros", "0"));
+
+            if (!harness.link.equals("pipe") && !harness.link.equals("file")) {
+                throw new ParseException("Unknown link: " + harness.link);
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            help(options, e);
+            return;
+        }
+
+        harness.run();
+        System.exit(0);
+    }
+
+    private String link;
+
+    private boolean echo;
+
+    private int connections;
+
+    private int messages;
+
+    /**
+     * Messages per connection of the warm-up round, 0 to skip it.
+     */
+    private int warmup;
+
+    private byte[] payload;
+
+    private LinkEmulator emulator;
+
+    /**
+     * Data and parity frames of the error correction, <code>null</code> without it.
+     */
+    private int[] fec;
+
+    private boolean reliable;
+
+    private Supplier<FrameCodec> frameCodec;
+
+    private boolean compression;
+
+    private int windowSize;
+
+    private int maxBatchBytes;
+
+    private long maxLingerMicros;
+
+    private int coalesceBytes;
+
+    private long coalesceMicros;
+
+    private final AtomicLong sunk = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private Histogram roundTrip;
+
+    private Histogram setup;
+
+    private void run() throws Exception {
+        EventLoopGroup targetGroup = new NioEventLoopGroup(1);
+        Channel target = startTarget(targetGroup);
+        int targetPort = ((InetSocketAddress) target.localAddress()).getPort();
+        int tunnelPort = freePort();
+
+        List<File> files = new ArrayList<>();
+        InputStream serverIn;
+        OutputStream serverOut;
+        InputStream clientIn;
+        OutputStream clientOut;
+        if (link.equals("pipe")) {
+            PipedOutputStream toClient = new PipedOutputStream();
+            PipedOutputStream toServer = new PipedOutputStream();
+            clientIn = new PipedInputStream(toClient, 1 << 20);
+            serverIn = new PipedInputStream(toServer, 1 << 20);
+            serverOut = toClient;
+            clientOut = toServer;
+        } else {
+            File shm = new File("/dev/shm");
+            File directory = shm.isDirectory() && shm.canWrite() ? shm : null;
+            File a = File.createTempFile("tunnel-a", ".bin", directory);
+            File b = File.createTempFile("tunnel-b", ".bin", directory);
+            files.add(a);
+            files.add(b);
+            serverIn = new FileTailInputStream(a);
+            serverOut = new GroupCommitOutputStream(FileChannel.open(b.toPath(), StandardOpenOption.WRITE), Durability.of("none"));
+            clientIn = new FileTailInputStream(b);
+            clientOut = new GroupCommitOutputStream(FileChannel.open(a.toPath(), StandardOpenOption.WRITE), Durability.of("none"));
+        }
+
+        // the layers in the same order as the tunnel stacks them
+        if (emulator != null) {
+            serverOut = emulator.wrap(serverOut, 0);
+            clientOut = emulator.wrap(clientOut, 1);
+        }
+        if (fec != null) {
+            serverIn = new FecInputStream(serverIn);
+            serverOut = new FecOutputStream(serverOut, fec[0], fec[1]);
+            clientIn = new FecInputStream(clientIn);
+            clientOut = new FecOutputStream(clientOut, fec[0], fec[1]);
+        }
+        if (reliable) {
+            ReliableLink serverLink = new ReliableLink(serverIn, serverOut, 1024 * 1024, 1000);
+            ReliableLink clientLink = new ReliableLink(clientIn, clientOut, 1024 * 1024, 1000);
+            serverIn = serverLink.getInputStream();
+            serverOut = serverLink.getOutputStream();
+            clientIn = clientLink.getInputStream();
+            clientOut = clientLink.getOutputStream();
+        }
+
+        HandlerServer server = new HandlerServer(serverIn, serverOut, "127.0.0.1", tunnelPort);
+        HandlerClient client = new HandlerClient(clientIn, clientOut, "127.0.0.1", targetPort);
+        for (HandlerBase handler : Arrays.asList(server, client)) {
+            handler.setFrameCodec(frameCodec);
+            handler.setCompression(compression);
+            handler.setWindowSize(windowSize);
+            handler.setMaxBatchBytes(maxBatchBytes);
+            handler.setMaxLingerMicros(maxLingerMicros);
+            handler.setCoalesceBytes(coalesceBytes);
+            handler.setCoalesceMicros(coalesceMicros);
+        }
+        server.start();
+        client.start();
+        awaitPort(tunnelPort);
+
+        System.out.println("Load: link=" + link + ", target=" + (echo ? "echo" : "sink") + ", connections=" + connections + ", messages=" + messages
+            + ", size=" + payload.length + (emulator != null ? ", emulate=" + emulator : ""));
+
+        if (warmup > 0) {
+            round(tunnelPort, warmup);
+        }
+        long elapsed = round(tunnelPort, messages);
+        report((long) connections * messages * payload.length, elapsed);
+        System.out.println("tunnel frames (bytes): server side " + server.getMetrics().getFramesOut() + " (" + server.getMetrics().getBytesOut() + "), client side "
+            + client.getMetrics().getFramesOut() + " (" + client.getMetrics().getBytesOut() + "), warm-up included");
+        System.out.println("server side queue residence us: " + server.getMetrics().getResidenceTime());
+        System.out.println("client side queue residence us: " + client.getMetrics().getResidenceTime());
+
+        // the handlers are not stopped, the interrupted pipes would only add noise
+        files.forEach(File::delete);
+    }
+
+    /**
+     * Runs the connections concurrently, returns the nanoseconds until all of them completed and the sink received all
+     * the data.
+     */
+    private long round(int port, int messages) throws InterruptedException {
+        roundTrip = new Histogram();
+        setup = new Histogram();
+        sunk.set(0);
+        CountDownLatch done = new CountDownLatch(connections);
+        long started = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    load(port, messages);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    System.err.println("Connection failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        if (!echo) {
+            // the data is in flight until the sink has it
+            long total = (long) connections * messages * payload.length;
+            while (sunk.get() < total && errors.get() == 0) {
+                Thread.sleep(1);
+            }
+        }
+        return System.nanoTime() - started;
+    }
+
+    /**
+     * Runs one connection: the messages are sent one by one, with the echo every message waits for its reply.
+     */
+    private void load(int port, int messages) throws IOException {
+        long connecting = System.nanoTime();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] reply = new byte[payload.length];
+            for (int i = 0; i < messages; i++) {
+                long sent = System.nanoTime();
+                out.write(payload);
+                if (!echo) {
+                    continue;
+                }
+                int read = 0;
+                while (read < reply.length) {
+                    int n = in.read(reply, read, reply.length - read);
+                    if (n == -1) {
+                        throw new IOException("Closed after " + i + " messages");
+                    }
+                    read += n;
+                }
+                long received = System.nanoTime();
+                if (i == 0) {
+                    setup.record(received - connecting);
+                } else {
+                    roundTrip.record(received - sent);
+                }
+                if (!Arrays.equals(reply, payload)) {
+                    throw new IOException("Corrupted reply of the message " + i);
+                }
+            }
+        }
+    }
+
+    private void report(long total, long elapsed) {
+        double seconds = elapsed / 1e9;
+        long bytes = echo ? 2 * total : total;
+        System.out.printf("throughput: %.1f KB/s, %.0f messages/s (%d bytes in %.2f s%s)%n",
+            bytes / seconds / 1024, connections * (long) messages / seconds, bytes, seconds, echo ? ", counted both ways" : "");
+        if (echo) {
+            Histogram.Snapshot rtt = roundTrip.snapshot();
+            Histogram.Snapshot connect = setup.snapshot();
+            System.out.printf("round trip us: p50=%d p99=%d p999=%d max=%d (%d samples)%n",
+                rtt.getPercentile(50) / 1000, rtt.getPercentile(99) / 1000, rtt.getPercentile(99.9) / 1000, rtt.getMax() / 1000, rtt.getCount());
+            System.out.printf("connection setup us: p50=%d p99=%d p999=%d max=%d (%d connections)%n",
+                connect.getPercentile(50) / 1000, connect.getPercentile(99) / 1000, connect.getPercentile(99.9) / 1000, connect.getMax() / 1000, connect.getCount());
+        }
+        System.out.println("errors: " + errors.get());
+    }
+
+    private Channel startTarget(EventLoopGroup group) throws InterruptedException {
+        return new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                            if (echo) {
+                                ctx.write(msg);
+                            } else {
+                                sunk.addAndGet(((ByteBuf) msg).readableBytes());
+                                ((ByteBuf) msg).release();
+                            }
+                        }
+
+                        @Override
+                        public void channelReadComplete(ChannelHandlerContext ctx) {
+                            ctx.flush();
+                        }
+                    });
+                }
+            }).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    private static byte[] payload(String pattern, int size) {
+        byte[] payload = new byte[size];
+        Random random = new Random(size);
+        switch (pattern) {
+            case "random":
+                random.nextBytes(payload);
+                break;
+            case "text":
+                for (int i = 0; i < size; i++) {
+                    payload[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+                }
+                break;
+            case "zeros":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload: " + pattern);
+        }
+        return payload;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * The server side listens once the client side has announced itself over the link.
+     */
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static Option option(String name, String full, boolean argument) {
+        return new Option(name, full, argument, null);
+    }
+
+    private static void help(Options options, Exception e) {
+        new HelpFormatter().printHelp(
+            "LoadHarness [--link pipe|file] [--target echo|sink] [--connections n] [--messages n] [--warmup n] [--size bytes] [--payload random|text|zeros]"
+                + " [--emulate baud=..,delay=..,jitter=..,corrupt=..,drop=..,seed=..] [--fec data:parity] [--reliable]",
+            e != null ? e.getMessage() : null,
+            options,
+            null
+        );
+        System.exit(128);
+    }
+
+}
@@ -0,0 +1,208 @@
+package org.no.ppp.sos.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.core.lookup.MainMapLookup;
+import org.no.ppp.sos.model.FrameCodec;
+import org.no.ppp.sos.model.Packet;
+import org.no.ppp.sos.server.HandlerBase;
+import org.no.ppp.sos.server.TunnelMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Throughput of the pumps over in-memory streams, in frames per second. The incoming pump decodes a prepared stream of
+ * {@link #FRAMES} frames, the outgoing pump runs on its own thread like in the tunnel and the benchmark waits until the
+ * frames offered to the queue are written out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PumpBenchmark {
+
+    private static final int FRAMES = 1024;
+
+    @Param({ "json", "binary" })
+    public String format;
+
+    @Param({ "64", "16384" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean compression;
+
+    private Pumps pumps;
+
+    private byte[] payload;
+
+    private byte[] stream;
+
+    private TunnelMetrics.Link link;
+
+    private CountingOutputStream out;
+
+    private Thread outgoing;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        MainMapLookup.setMainArguments("warn");
+        pumps = new Pumps();
+        pumps.setFrameCodec(() -> FrameCodec.of(format, false));
+        pumps.setCompression(compression);
+        link = pumps.getMetrics().addLink();
+
+        // text-like payload, so the compression has something to do
+        payload = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(8));
+        }
+
+        // the stream is encoded by the outgoing pump itself, so it is compressed when the compression is enabled
+        CountingOutputStream recorder = new CountingOutputStream(true);
+        Thread thread = pumps.startOutgoing(recorder, link);
+        for (int i = 0; i < FRAMES; i++) {
+            pumps.offer(new Packet(1 + i % 16).setData(payload));
+        }
+        recorder.await(FRAMES);
+        thread.interrupt();
+        thread.join();
+        stream = recorder.toByteArray();
+
+        out = new CountingOutputStream(false);
+        outgoing = pumps.startOutgoing(out, link);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        outgoing.interrupt();
+        outgoing.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long incoming() throws IOException {
+        long[] length = new long[1];
+        pumps.startIncoming(new ByteArrayInputStream(stream), p -> {
+            length[0] += p.getLength();
+            p.release();
+        }, link);
+        return length[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long outgoing() throws InterruptedException {
+        long target = pumps.getMetrics().getFramesOut() + FRAMES;
+        for (int i = 0; i < FRAMES; i++) {
+            pumps.offer(new Packet(1 + i % 16).setData(payload));
+        }
+        out.await(target);
+        return out.getFrames();
+    }
+
+    /**
+     * Exposes the pumps of the handler without the links and the sockets.
+     */
+    private static final class Pumps extends HandlerBase {
+
+        private Pumps() throws IOException {
+            super(Collections.<InputStream> emptyList(), Collections.<OutputStream> emptyList());
+        }
+
+        private void offer(Packet packet) {
+            outgoingPacketQueue.offer(packet);
+        }
+
+        private void startIncoming(InputStream stream, Consumer<Packet> consumer, TunnelMetrics.Link link) throws IOException {
+            startStreamToQueuePump(stream, consumer, link);
+        }
+
+        private Thread startOutgoing(OutputStream stream, TunnelMetrics.Link link) {
+            Thread thread = new Thread(() -> {
+                try {
+                    startQueueToStreamPump(outgoingPacketQueue, stream, link);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "outgoing");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+    }
+
+    /**
+     * Tracks the number of the frames flushed so far, taken from the metrics of the pump.
+     */
+    private final class CountingOutputStream extends OutputStream {
+
+        private final ByteBuf recorded;
+
+        private volatile long frames;
+
+        private CountingOutputStream(boolean record) {
+            this.recorded = record ? Unpooled.buffer() : null;
+        }
+
+        @Override
+        public void write(int b) {
+            if (recorded != null) {
+                recorded.writeByte(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (recorded != null) {
+                recorded.writeBytes(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            frames = pumps.getMetrics().getFramesOut();
+        }
+
+        private long getFrames() {
+            return frames;
+        }
+
+        private void await(long target) {
+            while (frames < target) {
+                Thread.yield();
+            }
+        }
+
+        private byte[] toByteArray() {
+            byte[] bytes = new byte[recorded.readableBytes()];
+            recorded.getBytes(0, bytes);
+            return bytes;
+        }
+    }
+
+}
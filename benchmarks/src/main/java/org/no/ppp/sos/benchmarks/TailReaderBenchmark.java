@@ -0,0 +1,149 @@
+package org.no.ppp.sos.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.lookup.MainMapLookup;
+import org.no.ppp.sos.util.FileTailInputStream;
+import org.no.ppp.sos.util.FileTileInputStream;
+import org.no.ppp.sos.util.FileTileInputStreamAsync;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from appending a chunk to the tunnel file until the tail reader returns all of it, i.e. the latency a small
+ * chunk adds and the throughput of the large ones. {@link #appendAndRead()} finds the data in the file already, while
+ * {@link #wakeup()} appends it once the reader is idle for {@link #IDLE_MICROS}, so its score is the idle time plus the
+ * time the reader needs to notice the new data. The file is placed on tmpfs (<code>/dev/shm</code>) when available,
+ * so the disk does not dominate the result. Once {@link #MAX_FILE_LENGTH} is written the file and the reader are
+ * replaced outside of the measured time, so a long run does not fill the file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class TailReaderBenchmark {
+
+    private static final long MAX_FILE_LENGTH = 8 * 1024 * 1024;
+
+    private static final long IDLE_MICROS = 1000;
+
+    @Param({ "tail", "tile", "tileAsync" })
+    public String reader;
+
+    @Param({ "64", "65536" })
+    public int size;
+
+    private File file;
+
+    private FileOutputStream out;
+
+    private InputStream in;
+
+    private byte[] chunk;
+
+    private byte[] received;
+
+    private long written;
+
+    private ScheduledExecutorService writer;
+
+    @Setup
+    public void setUp() throws IOException {
+        MainMapLookup.setMainArguments("warn");
+        chunk = new byte[size];
+        new Random(size).nextBytes(chunk);
+        received = new byte[size];
+        writer = Executors.newSingleThreadScheduledExecutor();
+        open();
+    }
+
+    @TearDown
+    public void stopWriter() {
+        writer.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void rotate() throws IOException {
+        if (written >= MAX_FILE_LENGTH) {
+            tearDown();
+            open();
+        }
+    }
+
+    private void open() throws IOException {
+        File shm = new File("/dev/shm");
+        file = File.createTempFile("tail", ".bin", shm.isDirectory() && shm.canWrite() ? shm : null);
+        out = new FileOutputStream(file, true);
+        switch (reader) {
+            case "tail":
+                in = new FileTailInputStream(file);
+                break;
+            case "tile":
+                in = new FileTileInputStream(file);
+                break;
+            case "tileAsync":
+                in = new FileTileInputStreamAsync(file);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown reader: " + reader);
+        }
+        written = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        in.close();
+        out.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int appendAndRead() throws IOException {
+        out.write(chunk);
+        written += size;
+        return readChunk();
+    }
+
+    @Benchmark
+    public int wakeup() throws IOException {
+        writer.schedule(() -> {
+            out.write(chunk);
+            return null;
+        }, IDLE_MICROS, TimeUnit.MICROSECONDS);
+        written += size;
+        return readChunk();
+    }
+
+    private int readChunk() throws IOException {
+        int read = 0;
+        while (read < size) {
+            int n = in.read(received, read, size - read);
+            if (n == -1) {
+                throw new IOException("Unexpected end of the file");
+            }
+            read += n;
+        }
+        return read;
+    }
+
+}
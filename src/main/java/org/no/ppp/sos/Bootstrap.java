@@ -6,8 +6,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -16,9 +21,25 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.core.lookup.MainMapLookup;
+import org.no.ppp.sos.model.FrameCodec;
+import org.no.ppp.sos.server.Execution;
+import org.no.ppp.sos.server.Forward;
+import org.no.ppp.sos.server.HandlerBase;
 import org.no.ppp.sos.server.HandlerClient;
 import org.no.ppp.sos.server.HandlerServer;
-import org.no.ppp.sos.util.FileTileInputStream;
+import org.no.ppp.sos.server.TrafficClass;
+import org.no.ppp.sos.server.Transport;
+import org.no.ppp.sos.util.Durability;
+import org.no.ppp.sos.util.FecInputStream;
+import org.no.ppp.sos.util.FecOutputStream;
+import org.no.ppp.sos.util.FileTailInputStream;
+import org.no.ppp.sos.util.GroupCommitOutputStream;
+import org.no.ppp.sos.util.LinkEmulator;
+import org.no.ppp.sos.util.ReedSolomon;
+import org.no.ppp.sos.util.ReliableLink;
+import org.no.ppp.sos.util.SegmentedFileInputStream;
+import org.no.ppp.sos.util.SegmentedFileOutputStream;
+import org.no.ppp.sos.util.Segments;
 
 public class Bootstrap {
 
@@ -29,21 +50,84 @@ public class Bootstrap {
             .addOption(option("s", "server", false))
             .addOption(option("c", "client", false))
             .addOption(option("v", "verbose", false))
+            .addOption(option(null, "stats-interval", true))
             .addOption(option("i", null, true))
             .addOption(option("o", null, true))
+            .addOption(option(null, "durability", true))
+            .addOption(option(null, "segment-size", true))
+            .addOption(option(null, "segment-count", true))
+            .addOption(option(null, "emulate", true))
+            .addOption(option(null, "fec", true))
+            .addOption(option(null, "reliable", false))
+            .addOption(option(null, "retransmit-timeout", true))
+            .addOption(option(null, "retransmit-buffer", true))
             .addOption(option("H", "host", true))
             .addOption(option("P", "port", true))
+            .addOption(option("F", "forward", true))
+            .addOption(option(null, "pool-min-idle", true))
+            .addOption(option(null, "pool-max-idle", true))
+            .addOption(option(null, "pool-idle-timeout", true))
+            .addOption(option(null, "transport", true))
+            .addOption(option(null, "boss-threads", true))
+            .addOption(option(null, "worker-threads", true))
+            .addOption(option(null, "threads", true))
+            .addOption(option(null, "tcp-nodelay", true))
+            .addOption(option(null, "so-sndbuf", true))
+            .addOption(option(null, "so-rcvbuf", true))
+            .addOption(option(null, "write-buffer", true))
+            .addOption(option("f", "format", true))
+            .addOption(option(null, "crc", false))
+            .addOption(option("z", "compress", false))
+            .addOption(option(null, "window", true))
+            .addOption(option(null, "batch-bytes", true))
+            .addOption(option(null, "linger-micros", true))
+            .addOption(option(null, "coalesce-bytes", true))
+            .addOption(option(null, "coalesce-micros", true))
+            .addOption(option(null, "quantum", true))
+            .addOption(option(null, "qos", true))
+            .addOption(option(null, "bulk-frame", true))
+            .addOption(option(null, "bulk-share", true))
         ;
 
         boolean isServer;
         boolean isClient;
 
-        InputStream is;
-        OutputStream os;
+        long statsInterval;
+
+        List<InputStream> inputs = new ArrayList<>();
+        List<OutputStream> outputs = new ArrayList<>();
 
         String host;
         Integer port;
 
+        List<Forward> forwards = null;
+
+        Supplier<FrameCodec> frameCodec;
+
+        boolean compression;
+
+        int windowSize;
+
+        int maxBatchBytes;
+        long maxLingerMicros;
+
+        int coalesceBytes;
+        long coalesceMicros;
+
+        int quantum;
+
+        Map<Integer, TrafficClass> trafficClasses = Collections.emptyMap();
+        int bulkFrameSize;
+        int bulkShare;
+
+        int poolMinIdle;
+        int poolMaxIdle;
+        long poolIdleTimeout;
+
+        Transport transport;
+
+        Execution execution;
+
         try {
             CommandLine cl = new DefaultParser().parse(options, arguments);
             if (cl.hasOption("h")) {
@@ -69,24 +153,86 @@ public class Bootstrap {
             }
             MainMapLookup.setMainArguments(level);
 
+            statsInterval = Long.valueOf(cl.getOptionValue("stats-interval", "0"));
+
             //
             // read file properties
             //
 
-            String iPath = cl.getOptionValue("i", "-");
-            if (iPath.equals("-")) {
-                is = System.in;
-            } else {
-                File file = prepareFile(iPath);
-                is = new FileTileInputStream(file);
+            Durability durability;
+            try {
+                durability = Durability.of(cl.getOptionValue("durability", "per-packet"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+
+            long segmentSize = Long.valueOf(cl.getOptionValue("segment-size", "0"));
+            int segmentCount = Integer.valueOf(cl.getOptionValue("segment-count", "4"));
+            if (segmentSize < 0) {
+                throw new ParseException("Illegal segment size: " + segmentSize);
+            }
+            if (segmentCount < 2) {
+                throw new ParseException("Illegal segment count: " + segmentCount);
             }
 
-            String oPath = cl.getOptionValue("o", "-");
-            if (oPath.equals("-")) {
-                os = System.out;
-            } else {
-                File file = prepareFile(oPath);
-                os = Files.newOutputStream(file.toPath(), StandardOpenOption.DSYNC);
+            // every -i / -o pair is a link, the tunnel is bonded over all of them
+            String[] iPaths = cl.hasOption("i") ? cl.getOptionValues("i") : new String[] { "-" };
+            String[] oPaths = cl.hasOption("o") ? cl.getOptionValues("o") : new String[] { "-" };
+            if (iPaths.length != oPaths.length) {
+                throw new ParseException("The same number of -i and -o should be used");
+            }
+            for (String iPath : iPaths) {
+                inputs.add(openInput(iPath, segmentSize));
+            }
+            for (String oPath : oPaths) {
+                outputs.add(openOutput(oPath, segmentSize, segmentCount, durability));
+            }
+
+            //
+            // link emulation properties
+            //
+
+            // the emulated line is the lowest layer, the error correction and the reliable link see its faults
+            if (cl.hasOption("emulate")) {
+                LinkEmulator emulator;
+                try {
+                    emulator = LinkEmulator.of(cl.getOptionValue("emulate"));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+                for (int i = 0; i < outputs.size(); i++) {
+                    outputs.set(i, emulator.wrap(outputs.get(i), i));
+                }
+            }
+
+            //
+            // reliability properties
+            //
+
+            if (cl.hasOption("fec")) {
+                String[] ratio = cl.getOptionValue("fec").split(":");
+                int dataShards;
+                int parityShards;
+                try {
+                    dataShards = Integer.valueOf(ratio[0]);
+                    parityShards = ratio.length > 1 ? Integer.valueOf(ratio[1]) : 1;
+                    new ReedSolomon(dataShards, parityShards);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Illegal error correction ratio: " + cl.getOptionValue("fec"));
+                }
+                for (int i = 0; i < inputs.size(); i++) {
+                    inputs.set(i, new FecInputStream(inputs.get(i)));
+                    outputs.set(i, new FecOutputStream(outputs.get(i), dataShards, parityShards));
+                }
+            }
+            if (cl.hasOption("reliable")) {
+                long retransmitTimeout = Long.valueOf(cl.getOptionValue("retransmit-timeout", "1000"));
+                int retransmitBuffer = Integer.valueOf(cl.getOptionValue("retransmit-buffer", String.valueOf(1024 * 1024)));
+                for (int i = 0; i < inputs.size(); i++) {
+                    ReliableLink link = new ReliableLink(inputs.get(i), outputs.get(i), retransmitBuffer, retransmitTimeout);
+                    inputs.set(i, link.getInputStream());
+                    outputs.set(i, link.getOutputStream());
+                }
             }
 
             //
@@ -99,13 +245,135 @@ public class Bootstrap {
             host = sHost;
             port = Integer.valueOf(sPort);
 
+            if (cl.hasOption("F")) {
+                if (cl.hasOption("P")) {
+                    throw new ParseException("Either -P or -F should be used");
+                }
+                try {
+                    forwards = Forward.parse(cl.getOptionValue("F"));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            }
+
+            poolMinIdle = Integer.valueOf(cl.getOptionValue("pool-min-idle", "0"));
+            poolMaxIdle = Integer.valueOf(cl.getOptionValue("pool-max-idle", String.valueOf(poolMinIdle * 4)));
+            poolIdleTimeout = Long.valueOf(cl.getOptionValue("pool-idle-timeout", "60000"));
+
+            //
+            // transport properties
+            //
+
+            try {
+                transport = Transport.of(cl.getOptionValue("transport", "auto"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            transport.setBossThreads(Integer.valueOf(cl.getOptionValue("boss-threads", "0")));
+            if (cl.hasOption("worker-threads")) {
+                transport.setWorkerThreads(Integer.valueOf(cl.getOptionValue("worker-threads")));
+            }
+            transport.setTcpNoDelay(Boolean.valueOf(cl.getOptionValue("tcp-nodelay", "true")));
+            transport.setSendBufferSize(Integer.valueOf(cl.getOptionValue("so-sndbuf", "0")));
+            transport.setReceiveBufferSize(Integer.valueOf(cl.getOptionValue("so-rcvbuf", "0")));
+            if (cl.hasOption("write-buffer")) {
+                String[] marks = cl.getOptionValue("write-buffer").split(":");
+                try {
+                    if (marks.length != 2) {
+                        throw new IllegalArgumentException();
+                    }
+                    transport.setWriteBufferWaterMark(Integer.valueOf(marks[0]), Integer.valueOf(marks[1]));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Illegal write buffer water marks: " + cl.getOptionValue("write-buffer"));
+                }
+            }
+            try {
+                execution = Execution.of(cl.getOptionValue("threads", "platform"));
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+
+            //
+            // frame properties
+            //
+
+            String format = cl.getOptionValue("f", "json");
+            boolean crc = cl.hasOption("crc");
+            try {
+                FrameCodec.of(format, crc);
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            frameCodec = () -> FrameCodec.of(format, crc);
+            compression = cl.hasOption("z");
+
+            //
+            // flow control properties
+            //
+
+            windowSize = Integer.valueOf(cl.getOptionValue("window", String.valueOf(HandlerBase.DEFAULT_WINDOW_SIZE)));
+            if (windowSize < HandlerBase.MIN_WINDOW_SIZE) {
+                throw new ParseException("Illegal window: " + windowSize + ", at least " + HandlerBase.MIN_WINDOW_SIZE + " bytes, the largest frame");
+            }
+
+            //
+            // batching properties
+            //
+
+            maxBatchBytes = Integer.valueOf(cl.getOptionValue("batch-bytes", "65536"));
+            maxLingerMicros = Long.valueOf(cl.getOptionValue("linger-micros", "0"));
+            coalesceBytes = Integer.valueOf(cl.getOptionValue("coalesce-bytes", "1024"));
+            coalesceMicros = Long.valueOf(cl.getOptionValue("coalesce-micros", "0"));
+
+            //
+            // scheduling properties
+            //
+
+            quantum = Integer.valueOf(cl.getOptionValue("quantum", String.valueOf(HandlerBase.DEFAULT_QUANTUM)));
+
+            if (cl.hasOption("qos")) {
+                try {
+                    trafficClasses = TrafficClass.parse(cl.getOptionValue("qos"));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            }
+            bulkFrameSize = Integer.valueOf(cl.getOptionValue("bulk-frame", String.valueOf(HandlerBase.DEFAULT_BULK_FRAME_SIZE)));
+            bulkShare = Integer.valueOf(cl.getOptionValue("bulk-share", String.valueOf(HandlerBase.DEFAULT_BULK_SHARE)));
+            if (quantum <= 0) {
+                throw new ParseException("Illegal quantum: " + quantum);
+            }
+            if (bulkFrameSize <= 0) {
+                throw new ParseException("Illegal bulk frame size: " + bulkFrameSize);
+            }
+            if (bulkShare < 1 || bulkShare > 99) {
+                throw new ParseException("Illegal bulk share: " + bulkShare);
+            }
+
         } catch (ParseException e) {
             help(options, e);
             throw new Error();
         }
 
         if (isServer) {
-            HandlerServer server = new HandlerServer(is, os, host, port);
+            HandlerServer server = new HandlerServer(inputs, outputs, host, port);
+            if (forwards != null) {
+                server.setForwards(forwards);
+            }
+            server.setTransport(transport);
+            server.setExecution(execution);
+            server.setStatsInterval(statsInterval);
+            server.setFrameCodec(frameCodec);
+            server.setCompression(compression);
+            server.setWindowSize(windowSize);
+            server.setMaxBatchBytes(maxBatchBytes);
+            server.setMaxLingerMicros(maxLingerMicros);
+            server.setCoalesceBytes(coalesceBytes);
+            server.setCoalesceMicros(coalesceMicros);
+            server.setQuantum(quantum);
+            server.setTrafficClasses(trafficClasses);
+            server.setBulkFrameSize(bulkFrameSize);
+            server.setBulkShare(bulkShare);
             server.start();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
@@ -117,7 +385,26 @@ public class Bootstrap {
         }
 
         if (isClient) {
-            HandlerClient client = new HandlerClient(is, os, host, port);
+            HandlerClient client = new HandlerClient(inputs, outputs, host, port);
+            if (forwards != null) {
+                client.setForwards(forwards);
+            }
+            client.setTransport(transport);
+            client.setExecution(execution);
+            client.setStatsInterval(statsInterval);
+            client.setFrameCodec(frameCodec);
+            client.setCompression(compression);
+            client.setWindowSize(windowSize);
+            client.setMaxBatchBytes(maxBatchBytes);
+            client.setMaxLingerMicros(maxLingerMicros);
+            client.setCoalesceBytes(coalesceBytes);
+            client.setCoalesceMicros(coalesceMicros);
+            client.setQuantum(quantum);
+            client.setBulkFrameSize(bulkFrameSize);
+            client.setBulkShare(bulkShare);
+            if (poolMinIdle > 0) {
+                client.setPool(poolMinIdle, poolMaxIdle, poolIdleTimeout);
+            }
             client.start();
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
@@ -132,6 +419,31 @@ public class Bootstrap {
         }
     }
 
+    private static InputStream openInput(String path, long segmentSize) throws IOException {
+        if (path.equals("-")) {
+            return System.in;
+        }
+        if (segmentSize > 0) {
+            File base = new File(path);
+            Segments.clear(base);
+            return new SegmentedFileInputStream(base);
+        }
+        return new FileTailInputStream(prepareFile(path));
+    }
+
+    private static OutputStream openOutput(String path, long segmentSize, int segmentCount, Durability durability) throws IOException {
+        if (path.equals("-")) {
+            return System.out;
+        }
+        if (segmentSize > 0) {
+            File base = new File(path);
+            Segments.clear(base);
+            return new SegmentedFileOutputStream(base, segmentSize, segmentCount, durability);
+        }
+        File file = prepareFile(path);
+        return new GroupCommitOutputStream(FileChannel.open(file.toPath(), StandardOpenOption.WRITE), durability);
+    }
+
     private static File prepareFile(String iPath) throws IOException, FileNotFoundException {
         File file = new File(iPath);
         if (!file.exists()) {
@@ -149,7 +461,7 @@ public class Bootstrap {
 
     private static void help(Options options, ParseException e) {
         new HelpFormatter().printHelp(
-            "program [-i file] [-o file] [-H host] [-P port]",
+            "program [-i file] [-o file] ... [-H host] [-P port | -F port->host:port,...] [-f json|binary]",
             e != null ? e.getMessage() : null,
             options,
             null
@@ -0,0 +1,163 @@
+package org.no.ppp.sos.model;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.no.ppp.sos.model.Packet.Type;
+import org.no.ppp.sos.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Compact length prefixed codec. The frame layout is:
+ *
+ * <pre>
+ * varint  length of the rest of the frame
+ * byte    flags (high bits: {@link #F_CRC}, {@link #F_COMPRESSED}, {@link #F_SEQ}) and packet type (low bits)
+ * varint  channel id
+ * varint  sequence number (only if {@link #F_SEQ} is set)
+ * bytes   payload
+ * int     CRC32 of the flags, id and payload (only if {@link #F_CRC} is set)
+ * </pre>
+ */
+public class BinaryFrameCodec implements FrameCodec {
+
+    static final int F_CRC = 0x80;
+
+    static final int F_COMPRESSED = 0x40;
+
+    static final int F_SEQ = 0x20;
+
+    static final int M_TYPE = 0x0F;
+
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final Type[] TYPES = Type.values();
+
+    private final boolean crc;
+
+    private final CRC32 encoderChecksum = new CRC32(); // encode and decode are called by different pumps
+
+    private final CRC32 decoderChecksum = new CRC32();
+
+    private long corruptFrames;
+
+    public BinaryFrameCodec(boolean crc) {
+        this.crc = crc;
+    }
+
+    @Override
+    public void encode(Packet packet, ByteBuf out) {
+        ByteBuf content = packet.getContent();
+        int dataLength = packet.getLength();
+
+        int seq = packet.getSeq();
+
+        int length = 1 + Utils.sizeOfVarInt(packet.getId()) + (seq != 0 ? Utils.sizeOfVarInt(seq) : 0) + dataLength + (crc ? 4 : 0);
+        Utils.writeVarInt(out, length);
+
+        int start = out.writerIndex();
+        out.writeByte((crc ? F_CRC : 0) | (packet.isCompressed() ? F_COMPRESSED : 0) | (seq != 0 ? F_SEQ : 0) | packet.getType().ordinal());
+        Utils.writeVarInt(out, packet.getId());
+        if (seq != 0) {
+            Utils.writeVarInt(out, seq);
+        }
+        if (content != null) {
+            out.writeBytes(content, content.readerIndex(), dataLength);
+        }
+        if (crc) {
+            out.writeInt(checksum(encoderChecksum, out, start, out.writerIndex() - start));
+        }
+    }
+
+    /**
+     * Frames failing the checksum, or missing it when the checksum is enabled, are skipped, the length prefix is trusted so the next frame is decoded as usual. A
+     * corrupted length can not be recovered from and fails the stream, like any other malformed frame.
+     */
+    @Override
+    public Packet decode(ByteBuf in) throws IOException {
+        while (true) {
+            int mark = in.readerIndex();
+            int length = Utils.readVarInt(in);
+            if (length == -1) {
+                return null;
+            }
+            if (length < 2 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Illegal frame length: " + length);
+            }
+            if (in.readableBytes() < length) {
+                in.readerIndex(mark);
+                return null;
+            }
+            int start = in.readerIndex();
+            int end = start + length;
+
+            int flags = in.readUnsignedByte();
+            if (crc && (flags & F_CRC) == 0) {
+                // the flag itself is not covered by a checksum, a frame of the checksummed stream must carry it
+                corruptFrames++;
+                logger.warn("Frame without checksum, {} bytes skipped ({} corrupt frames)", length, corruptFrames);
+                in.readerIndex(start + length);
+                continue;
+            }
+            if ((flags & F_CRC) != 0) {
+                if (length < 6) {
+                    throw new IOException("Illegal frame length: " + length);
+                }
+                end -= 4;
+                int expected = in.getInt(end);
+                if (checksum(decoderChecksum, in, start, end - start) != expected) {
+                    corruptFrames++;
+                    logger.warn("Frame checksum mismatch, {} bytes skipped ({} corrupt frames)", length, corruptFrames);
+                    in.readerIndex(start + length);
+                    continue;
+                }
+            }
+            int type = flags & M_TYPE;
+            if (type >= TYPES.length) {
+                throw new IOException("Unknown packet type: " + type);
+            }
+            Packet packet = new Packet().setType(TYPES[type]).setCompressed((flags & F_COMPRESSED) != 0);
+
+            int id = Utils.readVarInt(in);
+            if (id < 0 || in.readerIndex() > end) {
+                throw new IOException("Illegal channel id: " + id);
+            }
+            packet.setId(id);
+            if ((flags & F_SEQ) != 0) {
+                int seq = Utils.readVarInt(in);
+                if (seq < 0 || in.readerIndex() > end) {
+                    throw new IOException("Illegal sequence number: " + seq);
+                }
+                packet.setSeq(seq);
+            }
+            if (in.readerIndex() < end) {
+                packet.setContent(in.retainedSlice(in.readerIndex(), end - in.readerIndex())); // no copy
+            }
+            in.readerIndex(start + length);
+            return packet;
+        }
+    }
+
+    /**
+     * Returns the number of the frames skipped for the checksum mismatch.
+     */
+    public long getCorruptFrames() {
+        return corruptFrames;
+    }
+
+    private static int checksum(CRC32 checksum, ByteBuf buffer, int index, int length) {
+        checksum.reset();
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + index, length);
+        } else {
+            checksum.update(buffer.nioBuffer(index, length));
+        }
+        return (int) checksum.getValue();
+    }
+
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+}
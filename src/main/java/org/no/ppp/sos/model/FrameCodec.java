@@ -0,0 +1,34 @@
+package org.no.ppp.sos.model;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Converts packets to the frames of the tunnel stream and back.
+ */
+public interface FrameCodec {
+
+    /**
+     * Appends the complete frame of the packet to the buffer.
+     */
+    void encode(Packet packet, ByteBuf out);
+
+    /**
+     * Decodes the next frame from the buffer. Returns <code>null</code> and keeps the reader index untouched if the
+     * frame is not complete yet. The content of the packet may be a retained slice of the buffer, so the read bytes
+     * of the buffer must not be discarded while it is shared.
+     */
+    Packet decode(ByteBuf in) throws IOException;
+
+    static FrameCodec of(String name, boolean crc) {
+        switch (name) {
+            case "json":
+                return new JsonFrameCodec();
+            case "binary":
+                return new BinaryFrameCodec(crc);
+            default:
+                throw new IllegalArgumentException("Unknown frame format: " + name);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.no.ppp.sos.model;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+
+/**
+ * Compatibility codec: one JSON document per line.
+ */
+public class JsonFrameCodec implements FrameCodec {
+
+    /**
+     * Amount of bytes after the reader index which are known to contain no line separator, so that the next attempt
+     * continues the scan instead of starting it over.
+     */
+    private int scanned;
+
+    @Override
+    public void encode(Packet packet, ByteBuf out) {
+        out.writeBytes(packet.asBytes());
+        out.writeByte('\n');
+    }
+
+    @Override
+    public Packet decode(ByteBuf in) throws IOException {
+        if (scanned == 0) {
+            int start = in.forEachByte(ByteProcessor.FIND_NON_CRLF);
+            if (start == -1) {
+                in.skipBytes(in.readableBytes()); // only line separators are available
+                return null;
+            }
+            in.readerIndex(start);
+        }
+        int start = in.readerIndex();
+        int end = in.forEachByte(start + scanned, in.readableBytes() - scanned, ByteProcessor.FIND_CRLF);
+        if (end == -1) {
+            scanned = in.readableBytes();
+            return null;
+        }
+        scanned = 0;
+        int length = end - start;
+        Packet packet;
+        if (in.hasArray()) {
+            packet = Packet.of(in.array(), in.arrayOffset() + start, length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.getBytes(start, bytes);
+            packet = Packet.of(bytes, 0, length);
+        }
+        in.readerIndex(end + 1);
+        return packet;
+    }
+
+}
@@ -4,45 +4,99 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+
 public class Packet implements Serializable {
 
     private static final long serialVersionUID = 15L;
 
-    private String id;
+    /**
+     * Id of the link itself rather than of a channel.
+     */
+    public static final int CONTROL_ID = 0;
+
+    private int id;
 
-    private byte[] data;
+    /**
+     * Reference counted payload, owned by the packet until it is released or handed over to the channel.
+     */
+    private transient ByteBuf content;
 
     private Type type = Type.DATA;
 
+    private boolean compressed;
+
+    private int seq;
+
+    private transient long queuedAt;
+
+    private transient boolean bulk;
+
     public Packet() {
     }
 
-    public Packet(String id) {
+    public Packet(int id) {
         this.id = id;
     }
 
-    public String getId() {
+    public int getId() {
         return id;
     }
 
-    public Packet setId(String id) {
+    public Packet setId(int id) {
         this.id = id;
         return this;
     }
 
+    /**
+     * Returns the copy of the payload, the {@link #getContent()} should be preferred on the data path.
+     */
     public byte[] getData() {
+        if (content == null) {
+            return null;
+        }
+        byte[] data = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), data);
         return data;
     }
 
     public Packet setData(byte[] data) {
-        this.data = data;
+        return setContent(data != null ? Unpooled.wrappedBuffer(data) : null);
+    }
+
+    @JsonIgnore
+    public ByteBuf getContent() {
+        return content;
+    }
+
+    @JsonIgnore
+    public Packet setContent(ByteBuf content) {
+        this.content = content;
         return this;
     }
 
+    @JsonIgnore
+    public int getLength() {
+        return content != null ? content.readableBytes() : 0;
+    }
+
+    /**
+     * Releases the payload unless it was handed over already.
+     */
+    public void release() {
+        if (content != null) {
+            ReferenceCountUtil.release(content);
+            content = null;
+        }
+    }
+
     public Type getType() {
         return type;
     }
@@ -52,6 +106,59 @@ public class Packet implements Serializable {
         return this;
     }
 
+    /**
+     * Indicates the data is deflated, see {@link org.no.ppp.sos.util.PacketCompressor}.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public Packet setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    /**
+     * Sequence number of the packet within its channel, used to restore the order of packets received over the bonded
+     * links. Zero when the tunnel has a single link.
+     */
+    public int getSeq() {
+        return seq;
+    }
+
+    public Packet setSeq(int seq) {
+        this.seq = seq;
+        return this;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the packet was put in the outgoing queue, not sent over the tunnel.
+     */
+    @JsonIgnore
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    @JsonIgnore
+    public Packet setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+        return this;
+    }
+
+    /**
+     * Indicates the packet of a bulk channel, set by the outgoing queue and not sent over the tunnel.
+     */
+    @JsonIgnore
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    @JsonIgnore
+    public Packet setBulk(boolean bulk) {
+        this.bulk = bulk;
+        return this;
+    }
+
     public static Packet of(byte[] bytes, int offset, int length) throws IOException {
         return om.readValue(bytes, offset, length, Packet.class);
     }
@@ -64,9 +171,17 @@ public class Packet implements Serializable {
         }
     }
 
+    public byte[] asBytes() {
+        try {
+            return om.writeValueAsBytes(this);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @Override
     public String toString() {
-        return "Packet [c=" + id + (type != Type.DATA ? ", " + type.name().toLowerCase() : "") + (data != null ? ", data=" + data.length : "") + "]";
+        return "Packet [c=" + id + (type != Type.DATA ? ", " + type.name().toLowerCase() : "") + (content != null ? ", data=" + content.readableBytes() : "") + (compressed ? ", compressed" : "") + (seq != 0 ? ", seq=" + seq : "") + "]";
     }
 
     public static Packet of(String string) {
@@ -82,6 +197,7 @@ public class Packet implements Serializable {
         OPEN,
         CLOSE,
         ERROR,
+        WINDOW,
         ;
     }
 
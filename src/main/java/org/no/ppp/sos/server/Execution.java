@@ -0,0 +1,120 @@
+package org.no.ppp.sos.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads of the blocking parts of the tunnel: the stream pumps and the tasks resolving the targets before the
+ * connect. <code>platform</code> (default) uses the ordinary threads, <code>virtual</code> the virtual threads of Java
+ * 21, so many slow streams and name lookups wait in parallel without a large thread pool. The virtual threads are
+ * created through reflection, so the build for the older Java versions uses them on the Java 21 runtime too.
+ */
+public final class Execution {
+
+    /**
+     * <code>Thread.ofVirtual()</code>, <code>Thread.Builder.name(String)</code> and
+     * <code>Thread.Builder.unstarted(Runnable)</code>, <code>null</code> before Java 21.
+     */
+    private static final Method[] VIRTUAL = lookup();
+
+    private final boolean virtual;
+
+    /**
+     * Platform threads of the short tasks, created by the first one. Guarded by <code>this</code>.
+     */
+    private ExecutorService tasks;
+
+    private boolean shutdown;
+
+    private final AtomicInteger taskCount = new AtomicInteger();
+
+    private Execution(boolean virtual) {
+        this.virtual = virtual;
+    }
+
+    public static Execution of(String string) {
+        switch (string) {
+            case "platform":
+                return new Execution(false);
+            case "virtual":
+                if (VIRTUAL == null) {
+                    throw new IllegalArgumentException("Virtual threads are not available before Java 21");
+                }
+                return new Execution(true);
+            default:
+                throw new IllegalArgumentException("Unknown thread mode: " + string);
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Creates the thread of a long running task. The platform thread keeps the JVM running, the virtual one does not.
+     */
+    public Thread newThread(String name, Runnable task) {
+        return virtual ? newVirtualThread(name, task) : new Thread(task, name);
+    }
+
+    /**
+     * Runs a short blocking task, on its own virtual thread or on a cached platform thread.
+     */
+    public void execute(Runnable task) {
+        if (virtual) {
+            newVirtualThread("task-" + taskCount.incrementAndGet(), task).start();
+        } else {
+            tasks().execute(task);
+        }
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (tasks != null) {
+            tasks.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return virtual ? "virtual" : "platform";
+    }
+
+    private synchronized ExecutorService tasks() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Execution is shut down");
+        }
+        if (tasks == null) {
+            tasks = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "task-" + taskCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return tasks;
+    }
+
+    private static Method[] lookup() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            ofVirtual.invoke(null); // the preview of Java 19 and 20 fails unless enabled
+            return new Method[] { ofVirtual, builder.getMethod("name", String.class), builder.getMethod("unstarted", Runnable.class) };
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Thread newVirtualThread(String name, Runnable task) {
+        try {
+            Object builder = VIRTUAL[1].invoke(VIRTUAL[0].invoke(null), name);
+            return (Thread) VIRTUAL[2].invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create a virtual thread", e);
+        }
+    }
+
+}
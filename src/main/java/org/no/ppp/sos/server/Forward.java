@@ -0,0 +1,80 @@
+package org.no.ppp.sos.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Entry of the forward table: the port the server side listens on and the target the client side connects to. Both
+ * sides are given the same table, the server side announces the position of the entry with OPEN.
+ */
+public class Forward {
+
+    private final int port;
+
+    private final String targetHost;
+
+    private final int targetPort;
+
+    public Forward(int port, String targetHost, int targetPort) {
+        this.port = port;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getTargetHost() {
+        return targetHost;
+    }
+
+    public int getTargetPort() {
+        return targetPort;
+    }
+
+    /**
+     * Parses the table of comma separated entries like <code>3130->db:5432,3131->web:80</code>. The ports must be in
+     * 1..65535 and every listen port may appear only once.
+     */
+    public static List<Forward> parse(String table) {
+        List<Forward> forwards = new ArrayList<>();
+        Set<Integer> ports = new HashSet<>();
+        for (String entry : table.split(",")) {
+            int arrow = entry.indexOf("->");
+            int colon = entry.lastIndexOf(':');
+            if (arrow < 0 || colon < arrow) {
+                throw new IllegalArgumentException("Illegal forward: " + entry);
+            }
+            int port;
+            String targetHost = entry.substring(arrow + 2, colon).trim();
+            int targetPort;
+            try {
+                port = Integer.parseInt(entry.substring(0, arrow).trim());
+                targetPort = Integer.parseInt(entry.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal forward: " + entry);
+            }
+            if (!isPort(port) || !isPort(targetPort) || targetHost.isEmpty()) {
+                throw new IllegalArgumentException("Illegal forward: " + entry);
+            }
+            if (!ports.add(port)) {
+                throw new IllegalArgumentException("Duplicate forward port: " + port);
+            }
+            forwards.add(new Forward(port, targetHost, targetPort));
+        }
+        return forwards;
+    }
+
+    private static boolean isPort(int port) {
+        return port > 0 && port <= 0xFFFF;
+    }
+
+    @Override
+    public String toString() {
+        return port + "->" + targetHost + ":" + targetPort;
+    }
+
+}
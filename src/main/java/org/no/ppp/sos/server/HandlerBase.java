@@ -3,25 +3,35 @@ package org.no.ppp.sos.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+import org.no.ppp.sos.model.FrameCodec;
+import org.no.ppp.sos.model.JsonFrameCodec;
 import org.no.ppp.sos.model.Packet;
 import org.no.ppp.sos.model.Packet.Type;
-import org.no.ppp.sos.util.Utils;
+import org.no.ppp.sos.util.ChannelTable;
+import org.no.ppp.sos.util.PacketCompressor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.AttributeKey;
-import io.netty.util.internal.shaded.org.jctools.queues.MessagePassingQueue.Consumer;
 
 public abstract class HandlerBase {
 
@@ -30,101 +40,269 @@ public abstract class HandlerBase {
      */
     protected static final AttributeKey<Boolean> A_I = AttributeKey.valueOf("I");
 
-    protected BlockingQueue<Packet> outgoingPacketQueue = new ArrayBlockingQueue<>(20);
+    /**
+     * Tunnel id of the channel: allocated by the server side and announced to the client side with OPEN.
+     */
+    protected static final AttributeKey<Integer> A_ID = AttributeKey.valueOf("ID");
 
-    private Thread incoming;
+    /**
+     * Flow control window of the channel announced by the server side with OPEN, the own window size if not set.
+     */
+    protected static final AttributeKey<Integer> A_WINDOW = AttributeKey.valueOf("WINDOW");
 
-    private Thread outgoing;
+    /**
+     * Default amount of bytes a channel may send before the far side grants more credit.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
 
-    protected HandlerBase(InputStream is, OutputStream os) throws IOException {
+    /**
+     * Smallest window, the largest data packet of a channel: a socket read is at most 64 KB with the default receive
+     * buffer of Netty.
+     */
+    public static final int MIN_WINDOW_SIZE = 64 * 1024;
 
-        incoming = new Thread(new Runnable() {
-            @Override
-            public void run() {
+    /**
+     * Default amount of bytes a channel may send in one round of the outgoing scheduler.
+     */
+    public static final int DEFAULT_QUANTUM = 16 * 1024;
+
+    /**
+     * Default size of the frames the data of the bulk channels is split into.
+     */
+    public static final int DEFAULT_BULK_FRAME_SIZE = 16 * 1024;
+
+    /**
+     * Default percent of the bytes the bulk channels get while the interactive ones are busy.
+     */
+    public static final int DEFAULT_BULK_SHARE = 10;
+
+    /**
+     * Not bounded by itself: the amount of pending data is limited by the channel windows.
+     */
+    protected OutgoingScheduler outgoingPacketQueue = new OutgoingScheduler(DEFAULT_QUANTUM, DEFAULT_BULK_FRAME_SIZE, DEFAULT_BULK_SHARE);
+
+    protected int windowSize = DEFAULT_WINDOW_SIZE;
+
+    private static final int READ_CHUNK_SIZE = 65536;
+
+    protected int maxBatchBytes = 65536;
+
+    protected long maxLingerMicros = 0;
+
+    /**
+     * Small reads of a channel are merged into one packet of up to {@link #coalesceBytes}, for at most
+     * {@link #coalesceMicros} after the first one. Disabled with 0 micros.
+     */
+    protected int coalesceBytes = 1024;
+
+    protected long coalesceMicros = 0;
+
+    /**
+     * Every pump uses its own codec instance, the codecs keep the state of their stream.
+     */
+    protected Supplier<FrameCodec> frameCodec = JsonFrameCodec::new;
+
+    /**
+     * Incoming packets are decompressed regardless of the {@link #compression} setting.
+     */
+    protected PacketCompressor compressor = new PacketCompressor(Deflater.BEST_SPEED);
+
+    protected boolean compression;
+
+    protected Transport transport = Transport.of("auto");
+
+    protected Execution execution = Execution.of("platform");
+
+    protected final TunnelMetrics metrics = new TunnelMetrics(getClass().getSimpleName(), outgoingPacketQueue);
+
+    /**
+     * Period of the stats line on stderr, 0 if disabled.
+     */
+    protected long statsInterval;
+
+    /**
+     * Restores the order of the packets received over the bonded links, <code>null</code> for the single link.
+     */
+    private Resequencer resequencer;
+
+    /**
+     * Tasks of the pumps by the thread name, the threads are created on start.
+     */
+    private final Map<String, Runnable> incomingPumps = new LinkedHashMap<>();
+
+    private final Map<String, Runnable> outgoingPumps = new LinkedHashMap<>();
+
+    private final List<Thread> incoming = new ArrayList<>();
+
+    private final List<Thread> outgoing = new ArrayList<>();
+
+    /**
+     * Creates the handler of the tunnel bonded over several links. Every link is served by its own pair of pumps: the
+     * outgoing pumps take the next packets from the shared queue as soon as the previous batch is written, so a faster
+     * link carries more data and a stalled one stops taking new packets.
+     */
+    protected HandlerBase(List<InputStream> inputs, List<OutputStream> outputs) throws IOException {
+        if (outputs.size() > 1) {
+            outgoingPacketQueue.setSequencing(true);
+        }
+        if (inputs.size() > 1) {
+            resequencer = new Resequencer(this::onPacket, this::getWindow, this::failChannel);
+        }
+
+        List<TunnelMetrics.Link> links = new ArrayList<>();
+        for (int i = 0; i < Math.max(inputs.size(), outputs.size()); i++) {
+            links.add(metrics.addLink());
+        }
+
+        for (int i = 0; i < inputs.size(); i++) {
+            InputStream is = inputs.get(i);
+            TunnelMetrics.Link link = links.get(i);
+            incomingPumps.put(inputs.size() > 1 ? "incoming-" + i : "incoming", new Runnable() {
+                @Override
+                public void run() {
+                    logger.info("Pump task started.");
+                    try {
+                        startStreamToQueuePump(is, resequencer != null ? p -> resequencer.accept(p) : p -> onPacket(p), link);
+                    } catch (Exception e) {
+                        logger.warn("Pump task was interrupted by exception", e);
+                        throw new RuntimeException(e);
+                    }
+                    logger.info("Pump task finished.");
+                }
+            });
+        }
+
+        for (int i = 0; i < outputs.size(); i++) {
+            OutputStream os = outputs.get(i);
+            TunnelMetrics.Link link = links.get(i);
+            outgoingPumps.put(outputs.size() > 1 ? "outgoing-" + i : "outgoing", () -> {
                 logger.info("Pump task started.");
                 try {
-                    startStreamToQueuePump(is, p -> {
-                        switch (p.getType()) {
-                            case OPEN:
-                                onOpen(p);
-                                break;
-                            case DATA:
-                                onData(p);
-                                break;
-                            case CLOSE:
-                                onClose(p);
-                                break;
-                            case ERROR:
-                                onError(p);
-                                break;
-                        }
-                    });
+                    startQueueToStreamPump(outgoingPacketQueue, os, link);
                 } catch (Exception e) {
                     logger.warn("Pump task was interrupted by exception", e);
                     throw new RuntimeException(e);
                 }
                 logger.info("Pump task finished.");
-            }
-        });
-        incoming.setName("incoming");
-
-        outgoing = new Thread(() -> {
-            logger.info("Pump task started.");
-            try {
-                startQueueToStreamPump(outgoingPacketQueue, os);
-            } catch (Exception e) {
-                logger.warn("Pump task was interrupted by exception", e);
-                throw new RuntimeException(e);
-            }
-            logger.info("Pump task finished.");
-        });
-        outgoing.setName("outgoing");
+            });
+        }
     }
 
-    protected void startStreamToQueuePump(InputStream stream, Consumer<Packet> consumer) throws IOException {
-        int length = 0;
-
-        byte[] buffer = new byte[65536 * 2];
-        while (true) {
-            int b = stream.read(); // assumption that operation is blocking
-            if (b == -1) {
-                return;
-            }
-            if (b == '\r' || b == '\n') {
-                if (length == 0) {
-                    continue;
+    protected void startStreamToQueuePump(InputStream stream, Consumer<Packet> consumer, TunnelMetrics.Link link) throws IOException {
+        FrameCodec frameCodec = this.frameCodec.get();
+        PacketCompressor compressor = this.compressor.fork();
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(READ_CHUNK_SIZE * 2);
+        try {
+            while (true) {
+                buffer.ensureWritable(READ_CHUNK_SIZE);
+                // assumption that operation is blocking until at least one byte is available
+                int read = buffer.writeBytes(stream, buffer.writableBytes());
+                if (read == -1) {
+                    return;
                 }
-                Packet packet = Packet.of(buffer, 0, length);
-                length = 0;
-                if (logger.isInfoEnabled()) {
-                    logger.info("<== " + packet);
+                link.onRead(read);
+                Packet packet;
+                long started = System.nanoTime();
+                while ((packet = frameCodec.decode(buffer)) != null) {
+                    if (compressor.decompress(packet) == null) {
+                        onMalformedPacket(packet);
+                        started = System.nanoTime();
+                        continue;
+                    }
+                    metrics.getDecodeHistogram().record(System.nanoTime() - started);
+                    link.onFrameIn();
+                    if (logger.isInfoEnabled()) {
+                        logger.info("<== " + packet);
+                    }
+                    consumer.accept(packet);
+                    started = System.nanoTime();
+                }
+                if (buffer.refCnt() == 1) {
+                    buffer.discardSomeReadBytes();
+                } else if (buffer.writableBytes() < READ_CHUNK_SIZE) {
+                    // decoded packets still share the buffer, continue with the new one
+                    ByteBuf next = PooledByteBufAllocator.DEFAULT.heapBuffer(Math.max(READ_CHUNK_SIZE * 2, buffer.readableBytes() + READ_CHUNK_SIZE));
+                    next.writeBytes(buffer);
+                    buffer.release();
+                    buffer = next;
                 }
-                consumer.accept(packet);
-            } else {
-                buffer[length++] = (byte) b;
             }
+        } finally {
+            buffer.release();
         }
     }
 
-    protected void startQueueToStreamPump(BlockingQueue<Packet> queue, OutputStream stream) {
-        try (PrintWriter pw = new PrintWriter(stream)) {
-            while (true) {
+    /**
+     * Drops the packet which could not be decompressed, released already, instead of failing the link: the channel lost
+     * data, so only the channel is closed.
+     */
+    private void onMalformedPacket(Packet p) {
+        if (resequencer != null) {
+            resequencer.skip(p.getId(), p.getSeq());
+        }
+        if (p.getType() == Type.DATA) {
+            failChannel(p.getId(), "Malformed compressed packet");
+        }
+    }
+
+    /**
+     * Writes the packets in batches: the packets available in the queue (or arrived within the linger time) are encoded
+     * into one buffer, up to {@link #maxBatchBytes}, and written with a single write and flush. The rest is left in the
+     * queue for the next batch, or for the pump of another link. A batch ending with a bulk packet is limited to the bulk
+     * frame size, so an interactive packet arriving meanwhile does not wait behind a long write.
+     */
+    protected void startQueueToStreamPump(BlockingQueue<Packet> queue, OutputStream stream, TunnelMetrics.Link link) throws IOException {
+        FrameCodec frameCodec = this.frameCodec.get();
+        PacketCompressor compressor = this.compressor.fork();
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(maxBatchBytes);
+        try (OutputStream os = stream) {
+            boolean interrupted = false;
+            while (!interrupted) {
                 Packet packet;
                 try {
                     packet = queue.take();
                 } catch (InterruptedException e) {
                     break;
                 }
-                if (logger.isInfoEnabled()) {
-                    logger.info("==> " + packet);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxLingerMicros);
+                while (packet != null) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("==> " + packet);
+                    }
+                    long started = System.nanoTime();
+                    metrics.getResidenceHistogram().record(started - packet.getQueuedAt());
+                    frameCodec.encode(compression ? compressor.compress(packet) : packet, buffer);
+                    packet.release();
+                    metrics.getEncodeHistogram().record(System.nanoTime() - started);
+                    link.onFrameOut();
+                    if (buffer.readableBytes() >= maxBatchBytes || packet.isBulk() && buffer.readableBytes() >= outgoingPacketQueue.getBulkFrameSize()) {
+                        break;
+                    }
+                    packet = queue.poll();
+                    long remaining = deadline - System.nanoTime();
+                    if (packet == null && remaining > 0) {
+                        try {
+                            packet = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
                 }
-                pw.println(packet.asString());
-                pw.flush();
+                link.onBatch(buffer.readableBytes());
+                writeBatch(buffer, os);
             }
+        } finally {
+            buffer.release();
         }
     }
 
-    protected Map<String, ChannelContext> channels = new ConcurrentHashMap<>();
+    private void writeBatch(ByteBuf buffer, OutputStream os) throws IOException {
+        buffer.readBytes(os, buffer.readableBytes());
+        os.flush();
+        buffer.clear();
+    }
+
+    protected ChannelTable<ChannelContext> channels = new ChannelTable<>();
 
     protected ChannelContext getChannelContext(Packet p) {
         return channels.get(getChannelId(p));
@@ -134,12 +312,12 @@ public abstract class HandlerBase {
         return channels.get(getChannelId(c));
     }
 
-    protected String getChannelId(Packet p) {
+    protected int getChannelId(Packet p) {
         return p.getId();
     }
 
-    protected String getChannelId(Channel channel) {
-        return channel.id().asShortText();
+    protected int getChannelId(Channel channel) {
+        return channel.attr(A_ID).get();
     }
 
     protected ChannelDuplexHandler createChannelHandler() {
@@ -147,7 +325,9 @@ public abstract class HandlerBase {
 
             @Override
             public void channelActive(ChannelHandlerContext ctx) throws Exception {
-                ChannelContext channelContext = new ChannelContext(getChannelId(ctx.channel()), ctx);
+                Integer window = ctx.channel().attr(A_WINDOW).get();
+                ChannelContext channelContext = new ChannelContext(getChannelId(ctx.channel()), ctx, window != null ? window : windowSize);
+                channelContext.metrics = metrics.openChannel(channelContext.getId());
                 if (logger.isInfoEnabled()) {
                     logger.info("Engage channel: {}", channelContext.getId());
                 }
@@ -162,18 +342,24 @@ public abstract class HandlerBase {
                 if (logger.isInfoEnabled()) {
                     logger.info("Disarm channel: {}", channelContext.getId());
                 }
-                channels.remove(channelContext.getId());
-
+                flushCoalesced(channelContext); // ahead of CLOSE
                 onChannelClose(channelContext);
             }
 
             @Override
             public void channelRead(ChannelHandlerContext ctx, Object msg) {
                 ChannelContext channelContext = getChannelContext(ctx.channel());
-                outgoingPacketQueue.offer(new Packet(channelContext.getId()).setData(Utils.getBytes((ByteBuf) msg)));
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
+                ByteBuf content = (ByteBuf) msg; // released by the outgoing pump once encoded
+                int length = content.readableBytes();
+                channelContext.metrics.onRead(length);
+                if (coalesceMicros > 0) {
+                    coalesce(channelContext, content);
+                } else {
+                    outgoingPacketQueue.offer(new Packet(channelContext.getId()).setContent(content));
+                }
+                channelContext.sendWindow -= length;
+                if (channelContext.sendWindow <= 0) {
+                    ctx.channel().config().setAutoRead(false); // wait for the credit from the far side
                 }
             }
 
@@ -185,11 +371,123 @@ public abstract class HandlerBase {
         };
     }
 
+    /**
+     * Appends the read to the data waiting in the channel, which is sent once it reaches {@link #coalesceBytes} or when
+     * {@link #coalesceMicros} elapse after its first read. Runs on the channel event loop.
+     */
+    private void coalesce(ChannelContext channelContext, ByteBuf content) {
+        if (channelContext.coalesced == null) {
+            if (content.readableBytes() >= coalesceBytes) {
+                outgoingPacketQueue.offer(new Packet(channelContext.getId()).setContent(content));
+                return;
+            }
+            ChannelHandlerContext ctx = channelContext.getContext();
+            channelContext.coalesced = ctx.alloc().buffer(coalesceBytes);
+            channelContext.coalesceTask = ctx.executor().schedule(() -> flushCoalesced(channelContext), coalesceMicros, TimeUnit.MICROSECONDS);
+        }
+        channelContext.coalesced.writeBytes(content);
+        content.release();
+        if (channelContext.coalesced.readableBytes() >= coalesceBytes) {
+            flushCoalesced(channelContext);
+        }
+    }
+
+    private void flushCoalesced(ChannelContext channelContext) {
+        if (channelContext.coalesced == null) {
+            return;
+        }
+        channelContext.coalesceTask.cancel(false);
+        outgoingPacketQueue.offer(new Packet(channelContext.getId()).setContent(channelContext.coalesced));
+        channelContext.coalesced = null;
+        channelContext.coalesceTask = null;
+    }
+
+    public void setWindowSize(int windowSize) {
+        if (windowSize < MIN_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Illegal window: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    public void setQuantum(int quantum) {
+        outgoingPacketQueue.setQuantum(quantum);
+    }
+
+    public void setBulkFrameSize(int bulkFrameSize) {
+        outgoingPacketQueue.setBulkFrameSize(bulkFrameSize);
+    }
+
+    public void setBulkShare(int bulkShare) {
+        outgoingPacketQueue.setBulkShare(bulkShare);
+    }
+
+    /**
+     * Returns the amount of bytes waiting to be sent per channel.
+     */
+    public Map<Integer, Integer> getQueueDepths() {
+        return outgoingPacketQueue.getQueueDepths();
+    }
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public void setMaxLingerMicros(long maxLingerMicros) {
+        this.maxLingerMicros = maxLingerMicros;
+    }
+
+    public void setCoalesceBytes(int coalesceBytes) {
+        this.coalesceBytes = coalesceBytes;
+    }
+
+    public void setCoalesceMicros(long coalesceMicros) {
+        this.coalesceMicros = coalesceMicros;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public void setFrameCodec(Supplier<FrameCodec> frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Runs the pumps and the blocking tasks on the platform or the virtual threads.
+     */
+    public void setExecution(Execution execution) {
+        this.execution = execution;
+    }
+
+    /**
+     * Enables the stats line on stderr every given number of milliseconds.
+     */
+    public void setStatsInterval(long statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+    public TunnelMetrics getMetrics() {
+        return metrics;
+    }
+
     public void start() throws InterruptedException {
         logger.info("Netty starting ...");
 
-        incoming.start();
-        outgoing.start();
+        metrics.register();
+        if (statsInterval > 0) {
+            metrics.startReporting(statsInterval, System.err);
+        }
+
+        onInit();
+
+        incomingPumps.forEach((name, task) -> incoming.add(execution.newThread(name, task)));
+        outgoingPumps.forEach((name, task) -> outgoing.add(execution.newThread(name, task)));
+        incoming.forEach(Thread::start);
+        outgoing.forEach(Thread::start);
 
         onStart();
     }
@@ -197,13 +495,35 @@ public abstract class HandlerBase {
     public void stop() throws InterruptedException {
         logger.info("Netty is being stopped");
 
-        incoming.interrupt();
+        incoming.forEach(Thread::interrupt);
+
+        channels.forEach(c -> c.getContext().close());
+
+        outgoing.forEach(Thread::interrupt);
 
-        channels.values().forEach(c -> c.getContext().close());
+        if (resequencer != null) {
+            if (resequencer.getWaiting() > 0) {
+                logger.warn("{} packets were waiting for the delayed ones", resequencer.getWaiting());
+            }
+            resequencer.close();
+        }
+
+        if ((compression || compressor.getMalformedPackets() > 0) && logger.isInfoEnabled()) {
+            logger.info("Compression summary: {}", compressor);
+        }
 
-        outgoing.interrupt();
+        metrics.stop();
 
         onStop();
+
+        execution.shutdown();
+    }
+
+    /**
+     * Prepares the event loops before the pumps start, the far side may open a channel as soon as they run.
+     */
+    protected void onInit() {
+
     }
 
     protected void onStart() throws InterruptedException {
@@ -218,57 +538,173 @@ public abstract class HandlerBase {
 
     }
 
+    /**
+     * Sends CLOSE for every closed channel, also when the far side initiated closing: the server side recycles the id
+     * once both sides reported it closed.
+     */
     protected void onChannelClose(ChannelContext channelContext) {
-        if (channelContext.getContext().channel().attr(A_I).get() == null) {
-            outgoingPacketQueue.offer(new Packet(channelContext.getId()).setType(Type.CLOSE));
+        channels.remove(channelContext.getId(), channelContext);
+        metrics.closeChannel(channelContext.metrics);
+        outgoingPacketQueue.offer(new Packet(channelContext.getId()).setType(Type.CLOSE));
+    }
+
+    /**
+     * Dispatches the packet. The data packets are handed over to the channels, others are released once handled.
+     */
+    protected void onPacket(Packet p) {
+        if (p.getType() == Type.DATA) {
+            onData(p);
+            return;
+        }
+        try {
+            switch (p.getType()) {
+                case OPEN:
+                    onOpen(p);
+                    break;
+                case CLOSE:
+                    onClose(p);
+                    break;
+                case ERROR:
+                    onError(p);
+                    break;
+                case WINDOW:
+                    onWindow(p);
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            p.release();
         }
-        channelContext.getContext().channel().attr(A_I).set(null);
     }
 
     protected void onOpen(Packet p) {
 
     }
 
+    /**
+     * Gives up the channel which lost a packet on the way: the far side is told why with ERROR and the channel is
+     * closed, which sends CLOSE as usual. The other channels keep running.
+     */
+    protected void failChannel(int id, String reason) {
+        logger.warn("Channel {} failed: {}", id, reason);
+        outgoingPacketQueue.offer(new Packet(id).setType(Type.ERROR).setData(reason.getBytes(StandardCharsets.UTF_8)));
+        ChannelContext channelContext = channels.get(id);
+        if (channelContext != null) {
+            channelContext.getContext().close();
+        }
+    }
+
+    /**
+     * Returns the window of the channel, the own window size before the channel is active.
+     */
+    private int getWindow(int id) {
+        ChannelContext channelContext = channels.get(id);
+        return channelContext != null ? channelContext.window : windowSize;
+    }
+
     protected void onData(Packet p) {
         ChannelContext channelContext = getChannelContext(p);
         if (channelContext == null) {
             logger.warn("Channel is no longer manageable: {}", p.getId());
+            p.release();
             return;
         }
-        channelContext.getContext().writeAndFlush(Unpooled.wrappedBuffer(p.getData()));
+        int length = p.getLength();
+        channelContext.metrics.onWritten(length);
+        ByteBuf content = p.getContent();
+        channelContext.getContext().writeAndFlush(content != null ? content : Unpooled.EMPTY_BUFFER).addListener(f -> {
+            if (f.isSuccess()) {
+                onDataWritten(channelContext, length);
+            }
+        });
+    }
+
+    /**
+     * Grants the credit back to the far side once at least half of the window was written to the local socket. Both
+     * sides use the same window of the channel, the far side would stall before the half of a larger one is written.
+     */
+    protected void onDataWritten(ChannelContext channelContext, int length) {
+        channelContext.consumed += length;
+        if (channelContext.consumed >= channelContext.window / 2) {
+            byte[] credit = ByteBuffer.allocate(4).putInt(channelContext.consumed).array();
+            channelContext.consumed = 0;
+            outgoingPacketQueue.offer(new Packet(channelContext.getId()).setType(Type.WINDOW).setData(credit));
+        }
+    }
+
+    protected void onWindow(Packet p) {
+        ChannelContext channelContext = getChannelContext(p);
+        if (channelContext == null) {
+            return; // the channel is closed already, nothing to resume
+        }
+        int credit = ByteBuffer.wrap(p.getData()).getInt();
+        channelContext.getContext().executor().execute(() -> {
+            channelContext.sendWindow += credit;
+            if (channelContext.sendWindow > 0) {
+                channelContext.getContext().channel().config().setAutoRead(true);
+            }
+        });
     }
 
     protected void onClose(Packet p) {
         ChannelContext channelContext = getChannelContext(p);
         if (channelContext == null) {
-            logger.warn("Channel is no longer manageable: {}", p.getId());
-            return;
+            return; // the reply to CLOSE of this side
         }
         channelContext.getContext().channel().attr(A_I).set(true);
         channelContext.getContext().channel().close();
     }
 
     protected void onError(Packet p) {
-
+        logger.warn("Channel {} failed on the far side: {}", p.getId(),
+            p.getData() != null ? new String(p.getData(), StandardCharsets.UTF_8) : null);
     }
 
     protected static class ChannelContext {
 
-        private String id;
+        private int id;
 
         private ChannelHandlerContext context;
 
-        public ChannelContext(String id, ChannelHandlerContext context) {
+        /**
+         * Flow control window agreed with the far side.
+         */
+        private final int window;
+
+        /**
+         * Bytes the channel may still send to the far side. Accessed from the channel event loop only.
+         */
+        private int sendWindow;
+
+        /**
+         * Bytes written to the channel which were not granted back to the far side yet. Accessed from the channel event
+         * loop only.
+         */
+        private int consumed;
+
+        private TunnelMetrics.Channel metrics;
+
+        /**
+         * Reads waiting to be sent as one packet and the task sending them, accessed from the channel event loop only.
+         */
+        private ByteBuf coalesced;
+
+        private ScheduledFuture<?> coalesceTask;
+
+        public ChannelContext(int id, ChannelHandlerContext context, int window) {
             super();
             this.id = id;
             this.context = context;
+            this.window = window;
+            this.sendWindow = window;
         }
 
-        public String getId() {
+        public int getId() {
             return id;
         }
 
-        public void setId(String id) {
+        public void setId(int id) {
             this.id = id;
         }
 
@@ -3,22 +3,27 @@ package org.no.ppp.sos.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.no.ppp.sos.model.Packet;
-import org.no.ppp.sos.util.CustomChannelId;
+import org.no.ppp.sos.model.Packet.Type;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFactory;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelId;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 
 public class HandlerClient extends HandlerBase {
 
@@ -30,26 +35,46 @@ public class HandlerClient extends HandlerBase {
 
     private Bootstrap b;
 
+    private List<Forward> forwards;
+
+    private int poolMinIdle;
+
+    private int poolMaxIdle;
+
+    private long poolIdleTimeout;
+
+    /**
+     * Pools of the prepared connections per forward, <code>null</code> if disabled.
+     */
+    private TargetConnectionPool[] pools;
+
+    /**
+     * Packets received for the channels which are still connecting, guarded by itself.
+     */
+    private final IntObjectMap<List<Packet>> pending = new IntObjectHashMap<>();
+
+    /**
+     * Indicates the window of the server side differs from the own one, which is logged once.
+     */
+    private volatile boolean windowAdopted;
+
     public HandlerClient(InputStream is, OutputStream os, String host, Integer port) throws IOException {
-        super(is, os);
+        this(Collections.singletonList(is), Collections.singletonList(os), host, port);
+    }
+
+    public HandlerClient(List<InputStream> inputs, List<OutputStream> outputs, String host, Integer port) throws IOException {
+        super(inputs, outputs);
 
         this.host = host;
         this.port = port;
+        this.forwards = Collections.singletonList(new Forward(0, host, port));
+    }
 
-        workerGroup = new NioEventLoopGroup(8);
-        b = new Bootstrap().channelFactory((ChannelFactory<?>) () -> new NioSocketChannel() {
-            @Override
-            protected ChannelId newId() {
-                try {
-                    if (remoteChannelId == null) {
-                        throw new IllegalStateException();
-                    }
-                    return new CustomChannelId(remoteChannelId);
-                } finally {
-                    remoteChannelId = null;
-                }
-            }
-        }).option(ChannelOption.SO_KEEPALIVE, true).group(workerGroup)
+    @Override
+    protected void onInit() {
+        workerGroup = transport.newGroup(transport.getWorkerThreads());
+        b = transport.bootstrap(workerGroup)
+            .option(ChannelOption.SO_KEEPALIVE, true)
             .handler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 public void initChannel(SocketChannel ch) throws Exception {
@@ -57,36 +82,208 @@ public class HandlerClient extends HandlerBase {
                     channelPipeline.addLast(createChannelHandler());
                 }
             });
+        if (logger.isInfoEnabled()) {
+            logger.info("Netty transport: {}", transport);
+        }
+    }
+
+    /**
+     * Connects to the targets of the forward table instead of the single target.
+     */
+    public void setForwards(List<Forward> forwards) {
+        this.forwards = forwards;
     }
 
-    private String remoteChannelId;
+    /**
+     * Enables the pool of the prepared connections to every target.
+     */
+    public void setPool(int minIdle, int maxIdle, long idleTimeout) {
+        this.poolMinIdle = minIdle;
+        this.poolMaxIdle = maxIdle;
+        this.poolIdleTimeout = idleTimeout;
+    }
 
     @Override
-    protected synchronized void onOpen(Packet p) {
-        remoteChannelId = p.getId();
+    protected void onOpen(Packet p) {
+        int id = p.getId();
+        synchronized (pending) {
+            pending.put(id, new ArrayList<>());
+        }
+        int index = p.getLength() >= 4 ? p.getContent().getInt(p.getContent().readerIndex()) : 0;
+        if (index < 0 || index >= forwards.size()) {
+            onConnectFailure(id, null, new IllegalArgumentException("Unknown forward: " + index));
+            return;
+        }
+        int trafficClass = p.getLength() >= 5 ? p.getContent().getByte(p.getContent().readerIndex() + 4) : 0;
+        outgoingPacketQueue.setTrafficClass(id, trafficClass > 0 && trafficClass < TrafficClass.values().length ? TrafficClass.values()[trafficClass] : TrafficClass.AUTO);
+        int window = getAnnouncedWindow(p);
+        Forward forward = forwards.get(index);
+        Channel channel = pools != null ? pools[index].acquire() : null;
+        if (channel != null) {
+            channel.eventLoop().execute(() -> bind(channel, id, forward, window));
+        } else {
+            connect(id, forward, window);
+        }
+    }
 
-        ChannelFuture channelFuture = b.connect(host, port);
+    /**
+     * Returns the window announced by the server side, which applies to both directions of the channel, or the own one
+     * if the server side does not announce a valid one.
+     */
+    private int getAnnouncedWindow(Packet p) {
+        int window = p.getLength() >= 9 ? p.getContent().getInt(p.getContent().readerIndex() + 5) : 0;
+        if (window < MIN_WINDOW_SIZE) {
+            return windowSize;
+        }
+        if (window != windowSize && !windowAdopted) {
+            windowAdopted = true;
+            logger.info("Using the window of the server side: {} bytes instead of {}", window, windowSize);
+        }
+        return window;
+    }
 
+    /**
+     * Attaches the tunnel channel to the pooled connection.
+     */
+    private void bind(Channel channel, int id, Forward forward, int window) {
+        if (!channel.isActive()) {
+            connect(id, forward, window); // closed by the target meanwhile
+            return;
+        }
         if (logger.isInfoEnabled()) {
-            logger.info("Connecting to {}:{} ...", host, port);
+            logger.info("Binding {} to the pooled connection", id);
         }
-        try {
-            channelFuture.sync();
-            channelFuture.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).sync();
-        } catch (InterruptedException e) {
-            throw new IllegalStateException(e);
+        channel.attr(A_ID).set(id);
+        channel.attr(A_WINDOW).set(window);
+        channel.pipeline().addLast(createChannelHandler());
+        channel.pipeline().fireChannelActive();
+        channel.config().setAutoRead(true);
+    }
+
+    private void connect(int id, Forward forward, int window) {
+        if (logger.isInfoEnabled()) {
+            logger.info("Connecting {} to {}:{} ...", id, forward.getTargetHost(), forward.getTargetPort());
+        }
+        if (execution.isVirtual()) {
+            // the name lookup blocks the event loop of the channel otherwise
+            execution.execute(() -> {
+                InetSocketAddress address = new InetSocketAddress(forward.getTargetHost(), forward.getTargetPort());
+                if (address.isUnresolved()) {
+                    onConnectFailure(id, forward, new UnknownHostException(forward.getTargetHost()));
+                } else {
+                    connect(id, forward, address, window);
+                }
+            });
+        } else {
+            connect(id, forward, InetSocketAddress.createUnresolved(forward.getTargetHost(), forward.getTargetPort()), window);
         }
+    }
+
+    private void connect(int id, Forward forward, InetSocketAddress address, int window) {
+        ChannelFuture channelFuture = b.clone().attr(A_ID, id).attr(A_WINDOW, window).connect(address);
+        channelFuture.addListener(f -> {
+            if (!f.isSuccess()) {
+                onConnectFailure(id, forward, f.cause());
+            }
+        });
+    }
+
+    @Override
+    protected void onChannelOpen(ChannelContext channelContext) {
         if (logger.isInfoEnabled()) {
-            logger.info("Connected");
+            logger.info("Connected {}", channelContext.getId());
+        }
+        // dispatched under the lock, so packets arriving meanwhile are queued behind
+        synchronized (pending) {
+            List<Packet> packets = pending.remove(channelContext.getId());
+            if (packets != null) {
+                packets.forEach(this::onPacket);
+            }
+        }
+    }
+
+    private void onConnectFailure(int id, Forward forward, Throwable cause) {
+        if (forward != null) {
+            logger.warn("Unable to connect {} to {}:{}: {}", id, forward.getTargetHost(), forward.getTargetPort(), cause.toString());
+        } else {
+            logger.warn("Unable to connect {}: {}", id, cause.toString());
+        }
+        List<Packet> packets;
+        synchronized (pending) {
+            packets = pending.remove(id);
+        }
+        if (packets != null && packets.stream().noneMatch(p -> p.getType() == Type.CLOSE)) {
+            outgoingPacketQueue.offer(new Packet(id).setType(Type.ERROR).setData(String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8)));
+        }
+        if (packets != null) {
+            packets.forEach(Packet::release);
+        }
+        outgoingPacketQueue.offer(new Packet(id).setType(Type.CLOSE));
+    }
+
+    /**
+     * The channel which is not connected yet is closed as soon as it is.
+     */
+    @Override
+    protected void failChannel(int id, String reason) {
+        synchronized (pending) {
+            List<Packet> packets = pending.get(id);
+            if (packets != null) {
+                packets.add(new Packet(id).setType(Type.CLOSE));
+            }
+        }
+        super.failChannel(id, reason);
+    }
+
+    @Override
+    protected void onData(Packet p) {
+        if (!defer(p)) {
+            super.onData(p);
+        }
+    }
+
+    @Override
+    protected void onClose(Packet p) {
+        if (!defer(p)) {
+            super.onClose(p);
+        }
+    }
+
+    private boolean defer(Packet p) {
+        synchronized (pending) {
+            List<Packet> packets = pending.get(p.getId());
+            if (packets == null) {
+                return false;
+            }
+            packets.add(p);
+            return true;
         }
     }
 
     @Override
     protected void onStart() {
         if (logger.isInfoEnabled()) {
-            logger.info("Netty client is targeted on: {}:{}", host, port);
+            logger.info("Netty client is targeted on: {}", forwards.stream().map(f -> f.getTargetHost() + ":" + f.getTargetPort()).collect(Collectors.joining(", ")));
+        }
+        if (poolMinIdle > 0) {
+            pools = new TargetConnectionPool[forwards.size()];
+            for (int i = 0; i < pools.length; i++) {
+                Forward forward = forwards.get(i);
+                pools[i] = new TargetConnectionPool(b, forward.getTargetHost(), forward.getTargetPort(), poolMinIdle, poolMaxIdle, poolIdleTimeout);
+                pools[i].start();
+            }
+        }
+        outgoingPacketQueue.offer(new Packet(Packet.CONTROL_ID));
+    }
+
+    @Override
+    protected void onStop() {
+        if (pools != null) {
+            for (TargetConnectionPool pool : pools) {
+                pool.stop();
+            }
         }
-        outgoingPacketQueue.offer(new Packet("init"));
+        workerGroup.shutdownGracefully();
     }
 
 }
@@ -3,18 +3,24 @@ package org.no.ppp.sos.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.no.ppp.sos.model.Packet;
 import org.no.ppp.sos.model.Packet.Type;
+import org.no.ppp.sos.util.ChannelIdAllocator;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.AttributeKey;
 
 public class HandlerServer extends HandlerBase {
 
@@ -28,34 +34,118 @@ public class HandlerServer extends HandlerBase {
 
     private ServerBootstrap serverBootstrap;
 
-    private Channel channel;
+    /**
+     * Position of the forward the channel was accepted for.
+     */
+    private static final AttributeKey<Integer> A_FORWARD = AttributeKey.valueOf("FORWARD");
+
+    private List<Forward> forwards;
+
+    private Map<Integer, TrafficClass> trafficClasses = Collections.emptyMap();
+
+    private final List<Channel> serverChannels = new ArrayList<>();
+
+    private final ChannelIdAllocator ids = new ChannelIdAllocator();
+
+    /**
+     * Ids of the channels closed on this side which wait for CLOSE of the far side, guarded by {@link #ids}.
+     */
+    private final BitSet closing = new BitSet();
 
     public HandlerServer(InputStream is, OutputStream os, String host, Integer port) throws IOException {
-        super(is, os);
+        this(Collections.singletonList(is), Collections.singletonList(os), host, port);
+    }
+
+    public HandlerServer(List<InputStream> inputs, List<OutputStream> outputs, String host, Integer port) throws IOException {
+        super(inputs, outputs);
 
         this.host = host;
         this.port = port;
+        this.forwards = Collections.singletonList(new Forward(port, null, 0));
+    }
 
-        parentGroup = new NioEventLoopGroup(8);
-        workerGroup = new NioEventLoopGroup(8);
-        serverBootstrap = new ServerBootstrap().channel(NioServerSocketChannel.class)
-            .group(parentGroup, workerGroup).childHandler(new ChannelInitializer<SocketChannel>() {
+    /**
+     * Creates the event loops of the transport, without the boss threads the worker loops accept the connections too.
+     */
+    @Override
+    protected void onInit() {
+        workerGroup = transport.newGroup(transport.getWorkerThreads());
+        parentGroup = transport.getBossThreads() > 0 ? transport.newGroup(transport.getBossThreads()) : workerGroup;
+        serverBootstrap = transport.serverBootstrap(parentGroup, workerGroup)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) throws Exception {
+                    ch.attr(A_ID).set(ids.allocate());
                     ChannelPipeline channelPipeline = ch.pipeline();
                     channelPipeline.addLast(createChannelHandler());
                 }
             });
+        if (logger.isInfoEnabled()) {
+            logger.info("Netty transport: {}", transport);
+        }
+    }
+
+    /**
+     * Listens on the ports of the forward table instead of the single port.
+     */
+    public void setForwards(List<Forward> forwards) {
+        this.forwards = forwards;
+    }
+
+    /**
+     * Assigns the traffic classes of the channels by their listen port, the far side learns the class with OPEN.
+     */
+    public void setTrafficClasses(Map<Integer, TrafficClass> trafficClasses) {
+        this.trafficClasses = trafficClasses;
     }
 
+    /**
+     * Announces the channel to the far side with the position of its forward, the traffic class of its listen port and
+     * the window, which the far side adopts for the channel.
+     */
     @Override
     protected void onChannelOpen(ChannelContext channelContext) {
-        outgoingPacketQueue.offer(new Packet(channelContext.getId()).setType(Type.OPEN));
+        Packet open = new Packet(channelContext.getId()).setType(Type.OPEN);
+        int forward = channelContext.getContext().channel().attr(A_FORWARD).get();
+        TrafficClass trafficClass = trafficClasses.getOrDefault(forwards.get(forward).getPort(), TrafficClass.AUTO);
+        outgoingPacketQueue.setTrafficClass(channelContext.getId(), trafficClass);
+        open.setData(ByteBuffer.allocate(9).putInt(forward).put((byte) trafficClass.ordinal()).putInt(windowSize).array());
+        outgoingPacketQueue.offer(open);
+    }
+
+    /**
+     * The id is recycled once the channel is closed here and CLOSE is received from the far side, so no packet of the
+     * previous channel can be delivered to the new one.
+     */
+    @Override
+    protected void onChannelClose(ChannelContext channelContext) {
+        synchronized (ids) {
+            super.onChannelClose(channelContext);
+            if (channelContext.getContext().channel().attr(A_I).get() != null) {
+                ids.release(channelContext.getId());
+            } else {
+                closing.set(channelContext.getId());
+            }
+        }
+    }
+
+    @Override
+    protected void onClose(Packet p) {
+        synchronized (ids) {
+            if (getChannelContext(p) == null) {
+                if (closing.get(p.getId())) {
+                    closing.clear(p.getId());
+                    ids.release(p.getId());
+                }
+                return;
+            }
+            super.onClose(p);
+        }
     }
 
     @Override
     protected void onData(Packet p) {
-        if (p.getId().equals("init")) {
+        if (p.getId() == Packet.CONTROL_ID) {
             onDeferredStart();
             return;
         }
@@ -63,23 +153,28 @@ public class HandlerServer extends HandlerBase {
     }
 
     protected void onDeferredStart() {
-        try {
-            channel = serverBootstrap.bind(host, port)
-                    .sync().channel().closeFuture().channel();
-        } catch (InterruptedException e) {
-            throw new IllegalStateException(e);
-        }
-
-        if (logger.isInfoEnabled()) {
-            logger.info("Netty server started: host={}, port={}", host, port);
+        for (int i = 0; i < forwards.size(); i++) {
+            Forward forward = forwards.get(i);
+            try {
+                serverChannels.add(serverBootstrap.clone().childAttr(A_FORWARD, i).bind(host, forward.getPort()).sync().channel());
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info("Netty server started: host={}, port={}", host, forward.getPort());
+            }
         }
     }
 
     @Override
     public void onStop() throws InterruptedException {
-        channel.close().sync();
+        for (Channel channel : serverChannels) {
+            channel.close().sync();
+        }
 
-        parentGroup.shutdownGracefully();
+        if (parentGroup != workerGroup) {
+            parentGroup.shutdownGracefully();
+        }
         workerGroup.shutdownGracefully();
 
         if (logger.isInfoEnabled()) {
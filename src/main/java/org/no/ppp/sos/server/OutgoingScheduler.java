@@ -0,0 +1,504 @@
+package org.no.ppp.sos.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.no.ppp.sos.model.Packet;
+import org.no.ppp.sos.model.Packet.Type;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+/**
+ * Outgoing packet queue which serves the channels fairly: every channel has its own queue and the queues are served by
+ * deficit round robin with a byte quantum, so one bulk channel can not hold the link for the others. Control packets
+ * are served ahead of any data. WINDOW always is, so the credit of a busy channel does not wait for its own turn, the
+ * other control packets keep their place behind the packets still waiting in their channel: CLOSE and ERROR must not
+ * overtake the data, OPEN of a recycled id must not overtake the CLOSE of the previous channel.
+ * <p>
+ * The channels are split into two rounds by their {@link TrafficClass}: the interactive round is served first, the bulk
+ * one when the interactive channels have nothing to send or when the bulk channels are owed their minimal share of the
+ * bytes, so they are slowed down but never stopped. The class of an auto channel follows the moving average of its
+ * data packet sizes and is checked at the end of every turn of the channel. The data packets of the bulk channels are
+ * split into frames of at most the bulk frame size, so an interactive packet does not wait behind a long one.
+ * <p>
+ * The queue is not bounded, the amount of pending data is limited by the channel windows.
+ * <p>
+ * With sequencing enabled every packet is numbered within its channel as it is taken from the queue, so the far side
+ * can restore the order of the packets spread over several links. The numbers are never reset: the channel ids are small and recycled,
+ * so the counters of a recycled id simply continue.
+ */
+public class OutgoingScheduler extends AbstractQueue<Packet> implements BlockingQueue<Packet> {
+
+    /**
+     * Approximate frame envelope size, charged in addition to the payload.
+     */
+    private static final int PACKET_OVERHEAD = 16;
+
+    /**
+     * Auto channels sending larger data packets on average are bulk.
+     */
+    private static final int INTERACTIVE_LENGTH = 1024;
+
+    private static final TrafficClass[] CLASSES = TrafficClass.values();
+
+    private int quantum;
+
+    private int bulkFrameSize;
+
+    /**
+     * Percent of the bytes the bulk channels get while the interactive ones are busy, at least 1 so they are never
+     * starved.
+     */
+    private int bulkShare;
+
+    /**
+     * Bytes the bulk channels are owed, grows while the interactive channels are served.
+     */
+    private long bulkCredit;
+
+    private final ArrayDeque<Packet> control = new ArrayDeque<>();
+
+    private final IntObjectMap<ChannelQueue> queues = new IntObjectHashMap<>();
+
+    private final ArrayDeque<ChannelQueue> interactive = new ArrayDeque<>();
+
+    private final ArrayDeque<ChannelQueue> bulk = new ArrayDeque<>();
+
+    private int size;
+
+    private long bytes;
+
+    private boolean sequencing;
+
+    private int[] sequences = new int[64];
+
+    /**
+     * Assigned class (ordinal) and the moving average of the data packet sizes per channel.
+     */
+    private byte[] classes = new byte[64];
+
+    private int[] averages = new int[64];
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    public OutgoingScheduler(int quantum, int bulkFrameSize, int bulkShare) {
+        setQuantum(quantum);
+        setBulkFrameSize(bulkFrameSize);
+        setBulkShare(bulkShare);
+    }
+
+    /**
+     * Sets the bytes every channel may send per turn, a channel would never be served without a positive quantum.
+     */
+    public void setQuantum(int quantum) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Illegal quantum: " + quantum);
+        }
+        lock.lock();
+        try {
+            this.quantum = quantum;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setBulkFrameSize(int bulkFrameSize) {
+        if (bulkFrameSize <= 0) {
+            throw new IllegalArgumentException("Illegal bulk frame size: " + bulkFrameSize);
+        }
+        lock.lock();
+        try {
+            this.bulkFrameSize = bulkFrameSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBulkFrameSize() {
+        return bulkFrameSize;
+    }
+
+    public void setBulkShare(int bulkShare) {
+        if (bulkShare < 1 || bulkShare > 99) {
+            throw new IllegalArgumentException("Illegal bulk share: " + bulkShare);
+        }
+        lock.lock();
+        try {
+            this.bulkShare = bulkShare;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Assigns the class of the new channel, the history of the recycled id is cleared.
+     */
+    public void setTrafficClass(int id, TrafficClass trafficClass) {
+        lock.lock();
+        try {
+            grow(id);
+            classes[id] = (byte) trafficClass.ordinal();
+            averages[id] = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setSequencing(boolean sequencing) {
+        lock.lock();
+        try {
+            this.sequencing = sequencing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Packet packet) {
+        lock.lock();
+        try {
+            int id = packet.getId();
+            if (packet.getType() == Type.DATA) {
+                grow(id);
+                averages[id] += (packet.getLength() - averages[id]) / 4;
+                if (packet.getLength() > bulkFrameSize && isBulk(id)) {
+                    ByteBuf content = packet.getContent();
+                    for (int offset = content.readerIndex(); offset < content.writerIndex(); offset += bulkFrameSize) {
+                        enqueue(new Packet(id).setContent(content.retainedSlice(offset, Math.min(bulkFrameSize, content.writerIndex() - offset))));
+                    }
+                    packet.release();
+                    return true;
+                }
+            }
+            enqueue(packet);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Packet packet) {
+        packet.setQueuedAt(System.nanoTime());
+        ChannelQueue queue = queues.get(packet.getId());
+        if (packet.getType() == Type.WINDOW || packet.getType() != Type.DATA && queue == null) {
+            control.add(packet);
+        } else {
+            if (queue == null) {
+                queue = new ChannelQueue(packet.getId());
+                queue.bulk = isBulk(queue.id);
+                queues.put(queue.id, queue);
+                (queue.bulk ? bulk : interactive).add(queue);
+            }
+            queue.packets.add(packet);
+            queue.bytes += cost(packet);
+        }
+        size++;
+        bytes += cost(packet);
+        notEmpty.signal();
+    }
+
+    @Override
+    public void put(Packet packet) {
+        offer(packet);
+    }
+
+    @Override
+    public boolean offer(Packet packet, long timeout, TimeUnit unit) {
+        return offer(packet);
+    }
+
+    @Override
+    public Packet poll() {
+        lock.lock();
+        try {
+            return size > 0 ? dequeue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Packet take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Packet> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Packet> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && size > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the packet the next {@link #poll()} would return, without changing the state of the rounds.
+     */
+    @Override
+    public Packet peek() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            if (!control.isEmpty()) {
+                return control.peek();
+            }
+            return peek(interactive.isEmpty() || !bulk.isEmpty() && bulkCredit > 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public Iterator<Packet> iterator() {
+        lock.lock();
+        try {
+            List<Packet> snapshot = new ArrayList<>(control);
+            for (ChannelQueue queue : interactive) {
+                snapshot.addAll(queue.packets);
+            }
+            for (ChannelQueue queue : bulk) {
+                snapshot.addAll(queue.packets);
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of bytes waiting in every channel queue.
+     */
+    public Map<Integer, Integer> getQueueDepths() {
+        lock.lock();
+        try {
+            Map<Integer, Integer> depths = new HashMap<>();
+            for (ChannelQueue queue : interactive) {
+                depths.put(queue.id, queue.bytes);
+            }
+            for (ChannelQueue queue : bulk) {
+                depths.put(queue.id, queue.bytes);
+            }
+            return depths;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of bytes waiting in the queue, including the control packets.
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Packet dequeue() {
+        Packet packet = next();
+        if (sequencing) {
+            packet.setSeq(nextSeq(packet.getId()));
+        }
+        return packet;
+    }
+
+    private Packet next() {
+        size--;
+        if (!control.isEmpty()) {
+            Packet packet = control.poll();
+            bytes -= cost(packet);
+            return packet;
+        }
+        boolean served = interactive.isEmpty() || !bulk.isEmpty() && bulkCredit > 0;
+        Packet packet = dequeue(served ? bulk : interactive);
+        if (served) {
+            bulkCredit -= cost(packet);
+        } else if (!bulk.isEmpty()) {
+            bulkCredit += (long) cost(packet) * bulkShare / (100 - bulkShare);
+        }
+        if (bulk.isEmpty()) {
+            bulkCredit = 0;
+        }
+        return packet;
+    }
+
+    private Packet dequeue(ArrayDeque<ChannelQueue> round) {
+        while (true) {
+            ChannelQueue queue = round.peek();
+            if (!queue.visited) {
+                queue.deficit += quantum;
+                queue.visited = true;
+            }
+            Packet packet = queue.packets.peek();
+            int cost = cost(packet);
+            if (cost <= queue.deficit) {
+                queue.packets.poll();
+                queue.bytes -= cost;
+                bytes -= cost;
+                queue.deficit -= cost;
+                if (queue.packets.isEmpty()) {
+                    round.poll();
+                    queues.remove(queue.id);
+                }
+                return packet.setBulk(queue.bulk);
+            }
+            queue.visited = false;
+            round.poll();
+            queue.bulk = isBulk(queue.id);
+            (queue.bulk ? bulk : interactive).add(queue);
+            if (round.isEmpty()) {
+                round = queue.bulk ? bulk : interactive;
+            }
+        }
+    }
+
+    /**
+     * Replays {@link #dequeue(ArrayDeque)} on the copies of the rounds, the deficits gained on the way are kept aside.
+     */
+    private Packet peek(boolean inBulk) {
+        ArrayDeque<ChannelQueue> interactiveRound = new ArrayDeque<>(interactive);
+        ArrayDeque<ChannelQueue> bulkRound = new ArrayDeque<>(bulk);
+        Map<ChannelQueue, Integer> deficits = new IdentityHashMap<>();
+        while (true) {
+            ArrayDeque<ChannelQueue> round = inBulk ? bulkRound : interactiveRound;
+            ChannelQueue queue = round.poll();
+            Integer previous = deficits.get(queue);
+            int deficit = previous != null ? previous + quantum : queue.deficit + (queue.visited ? 0 : quantum);
+            Packet packet = queue.packets.peek();
+            if (cost(packet) <= deficit) {
+                return packet;
+            }
+            deficits.put(queue, deficit);
+            boolean queueBulk = isBulk(queue.id);
+            (queueBulk ? bulkRound : interactiveRound).add(queue);
+            if (round.isEmpty()) {
+                inBulk = queueBulk;
+            }
+        }
+    }
+
+    private boolean isBulk(int id) {
+        if (id >= classes.length) {
+            return false;
+        }
+        switch (CLASSES[classes[id]]) {
+            case INTERACTIVE:
+                return false;
+            case BULK:
+                return true;
+            default:
+                return averages[id] > INTERACTIVE_LENGTH;
+        }
+    }
+
+    private void grow(int id) {
+        if (id >= classes.length) {
+            classes = Arrays.copyOf(classes, Math.max(id + 1, classes.length * 2));
+            averages = Arrays.copyOf(averages, classes.length);
+        }
+    }
+
+    private int nextSeq(int id) {
+        if (id >= sequences.length) {
+            sequences = Arrays.copyOf(sequences, Math.max(id + 1, sequences.length * 2));
+        }
+        int seq = sequences[id];
+        sequences[id] = (seq + 1) & Integer.MAX_VALUE;
+        return seq;
+    }
+
+    private static int cost(Packet packet) {
+        return PACKET_OVERHEAD + packet.getLength();
+    }
+
+    private static class ChannelQueue {
+
+        private final int id;
+
+        private final ArrayDeque<Packet> packets = new ArrayDeque<>();
+
+        private int bytes;
+
+        private int deficit;
+
+        private boolean visited;
+
+        private boolean bulk;
+
+        private ChannelQueue(int id) {
+            this.id = id;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.no.ppp.sos.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+import org.no.ppp.sos.model.Packet;
+import org.no.ppp.sos.model.Packet.Type;
+
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+/**
+ * Restores the order of the packets received over the bonded links. Every channel is ordered separately by the
+ * sequence numbers assigned by {@link OutgoingScheduler}, so a packet delayed by a slow link holds back its own channel
+ * only. Packets which came ahead of their turn are kept until the missing ones arrive.
+ * <p>
+ * A packet lost on the way, like a frame failing the checksum, would hold its channel forever. The channel is given up
+ * when the missing packet does not arrive within {@link #MAX_WAIT_MILLIS} or when the kept packets exceed twice the
+ * window of the channel, which the flow control of the far side never sends ahead. The kept data is dropped, the
+ * control packets are still handed over, and the channel continues after the last kept packet.
+ * <p>
+ * Called by all incoming pumps, the packets are handed over to the consumer one at a time.
+ */
+public class Resequencer {
+
+    static final long MAX_WAIT_MILLIS = 30000;
+
+    /**
+     * Approximate frame envelope size, charged in addition to the payload.
+     */
+    private static final int PACKET_OVERHEAD = 16;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "resequencer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Consumer<Packet> consumer;
+
+    private final IntUnaryOperator window;
+
+    private final BiConsumer<Integer, String> failure;
+
+    private int[] expected = new int[64];
+
+    /**
+     * Bytes kept per channel and the time the channel started waiting, in nanos.
+     */
+    private long[] waiting = new long[64];
+
+    private long[] waitingSince = new long[64];
+
+    private final LongObjectMap<Packet> early = new LongObjectHashMap<>();
+
+    /**
+     * Stand-ins of the packets which were received but dropped, see {@link #skip(int, int)}.
+     */
+    private final Set<Packet> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final ScheduledFuture<?> expiryTask;
+
+    /**
+     * @param window returns the flow control window of the channel
+     * @param failure called with the id of the channel given up and the reason
+     */
+    public Resequencer(Consumer<Packet> consumer, IntUnaryOperator window, BiConsumer<Integer, String> failure) {
+        this.consumer = consumer;
+        this.window = window;
+        this.failure = failure;
+        this.expiryTask = scheduler.scheduleWithFixedDelay(() -> expire(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
+    }
+
+    public synchronized void accept(Packet packet) {
+        int id = packet.getId();
+        grow(id);
+        int distance = (packet.getSeq() - expected[id]) & Integer.MAX_VALUE;
+        if (distance > Integer.MAX_VALUE / 2) {
+            skipped.remove(packet);
+            packet.release(); // arrived after the channel gave up waiting for it
+            return;
+        }
+        if (distance > 0) {
+            keep(packet);
+            return;
+        }
+        while (packet != null) {
+            expected[id] = (expected[id] + 1) & Integer.MAX_VALUE;
+            if (!skipped.remove(packet)) {
+                consumer.accept(packet);
+            }
+            packet = early.isEmpty() ? null : early.remove(key(id, expected[id]));
+            if (packet != null) {
+                waiting[id] -= cost(packet);
+            }
+        }
+        waitingSince[id] = waiting[id] > 0 ? System.nanoTime() : 0; // the next missing packet
+    }
+
+    /**
+     * Takes the turn of the packet which was received but dropped, so the later packets of its channel do not wait for
+     * it.
+     */
+    public synchronized void skip(int id, int seq) {
+        Packet packet = new Packet(id).setSeq(seq);
+        skipped.add(packet);
+        accept(packet);
+    }
+
+    /**
+     * Gives up the channels waiting for longer than {@link #MAX_WAIT_MILLIS}.
+     */
+    synchronized void expire(long now) {
+        for (int id = 0; id < waiting.length; id++) {
+            if (waiting[id] > 0 && now - waitingSince[id] > TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS)) {
+                giveUp(id, "Missing packet " + expected[id] + " was not received within " + MAX_WAIT_MILLIS + " ms");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting for the delayed ones.
+     */
+    public synchronized int getWaiting() {
+        return early.size();
+    }
+
+    public void close() {
+        expiryTask.cancel(false);
+    }
+
+    private void keep(Packet packet) {
+        int id = packet.getId();
+        Packet previous = early.put(key(id, packet.getSeq()), packet);
+        if (previous != null) {
+            skipped.remove(previous);
+            waiting[id] -= cost(previous);
+            previous.release();
+        }
+        if (waiting[id] == 0) {
+            waitingSince[id] = System.nanoTime();
+        }
+        waiting[id] += cost(packet);
+        long limit = 2L * window.applyAsInt(id);
+        if (waiting[id] > limit) {
+            giveUp(id, "Packets waiting for the missing packet " + expected[id] + " exceed " + limit + " bytes");
+        }
+    }
+
+    private void giveUp(int id, String reason) {
+        failure.accept(id, reason);
+        List<Packet> kept = new ArrayList<>();
+        for (LongObjectMap.PrimitiveEntry<Packet> entry : early.entries()) {
+            if ((int) (entry.key() >>> 32) == id) {
+                kept.add(entry.value());
+            }
+        }
+        int first = expected[id];
+        kept.sort((a, b) -> Integer.compare((a.getSeq() - first) & Integer.MAX_VALUE, (b.getSeq() - first) & Integer.MAX_VALUE));
+        for (Packet packet : kept) {
+            early.remove(key(id, packet.getSeq()));
+            expected[id] = (packet.getSeq() + 1) & Integer.MAX_VALUE;
+            if (skipped.remove(packet) || packet.getType() == Type.DATA) {
+                packet.release();
+            } else {
+                consumer.accept(packet);
+            }
+        }
+        waiting[id] = 0;
+        waitingSince[id] = 0;
+    }
+
+    private void grow(int id) {
+        if (id >= expected.length) {
+            int length = Math.max(id + 1, expected.length * 2);
+            expected = Arrays.copyOf(expected, length);
+            waiting = Arrays.copyOf(waiting, length);
+            waitingSince = Arrays.copyOf(waitingSince, length);
+        }
+    }
+
+    private static int cost(Packet packet) {
+        return PACKET_OVERHEAD + packet.getLength();
+    }
+
+    private static long key(int id, int seq) {
+        return (long) id << 32 | seq;
+    }
+
+}
@@ -0,0 +1,165 @@
+package org.no.ppp.sos.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.SocketChannel;
+
+/**
+ * Keeps idle connections to the target, so a new tunnel channel does not have to wait for the handshake. The number of
+ * idle connections adapts to the demand between the minimum and maximum: it grows when a connection is requested from
+ * the empty pool and shrinks when the idle connections expire unused. The pooled connections do not read until they
+ * are taken, so a greeting sent by the target is not lost.
+ */
+public class TargetConnectionPool {
+
+    private final Bootstrap bootstrap;
+
+    private final String host;
+
+    private final int port;
+
+    private final int minIdle;
+
+    private final int maxIdle;
+
+    private final long idleTimeout;
+
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Connections being established, a slot is reserved before the connect so concurrent callers do not overshoot.
+     */
+    private final AtomicInteger connecting = new AtomicInteger();
+
+    /**
+     * Number of the idle connections to keep, between the minimum and maximum. Updated by the callers of
+     * {@link #acquire()} and by the eviction task concurrently.
+     */
+    private final AtomicInteger target = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    private ScheduledFuture<?> evictionTask;
+
+    public TargetConnectionPool(Bootstrap bootstrap, String host, int port, int minIdle, int maxIdle, long idleTimeout) {
+        this.bootstrap = bootstrap.clone().option(ChannelOption.AUTO_READ, false)
+            .handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    // the tunnel handler is added when the connection is taken
+                }
+            });
+        this.host = host;
+        this.port = port;
+        this.minIdle = minIdle;
+        this.maxIdle = Math.max(minIdle, maxIdle);
+        this.idleTimeout = idleTimeout;
+        this.target.set(minIdle);
+    }
+
+    public void start() {
+        long period = Math.max(1, idleTimeout / 2);
+        evictionTask = bootstrap.config().group().scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+        replenish();
+    }
+
+    public void stop() {
+        closed = true;
+        if (evictionTask != null) {
+            evictionTask.cancel(false);
+        }
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.channel.close();
+        }
+    }
+
+    /**
+     * Takes the idle connection or returns <code>null</code> if there is none.
+     */
+    public Channel acquire() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            if (connection.channel.isActive()) {
+                break;
+            }
+        }
+        if (connection == null) {
+            target.updateAndGet(t -> t < maxIdle ? t + 1 : t); // the pool is too small for the current demand
+        }
+        replenish();
+        return connection != null ? connection.channel : null;
+    }
+
+    private void replenish() {
+        while (!closed) {
+            int pending = connecting.get();
+            if (idle.size() + pending >= target.get()) {
+                return;
+            }
+            if (!connecting.compareAndSet(pending, pending + 1)) {
+                continue; // another caller took the slot
+            }
+            ChannelFuture channelFuture = bootstrap.connect(host, port);
+            channelFuture.addListener(f -> {
+                connecting.decrementAndGet();
+                if (!f.isSuccess()) {
+                    logger.warn("Unable to prepare connection to {}:{}: {}", host, port, f.cause().toString());
+                    return; // the next attempt is made by the eviction task or on demand
+                }
+                Connection connection = new Connection(channelFuture.channel());
+                idle.add(connection);
+                connection.channel.closeFuture().addListener(c -> idle.remove(connection));
+                if (closed) {
+                    connection.channel.close();
+                }
+            });
+        }
+    }
+
+    private void evict() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Iterator<Connection> i = idle.iterator(); i.hasNext();) {
+            Connection connection = i.next();
+            if (now - connection.since > TimeUnit.MILLISECONDS.toNanos(idleTimeout)) {
+                i.remove();
+                connection.channel.close();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            int shrunk = target.accumulateAndGet(evicted, (t, e) -> Math.max(minIdle, t - e));
+            if (logger.isInfoEnabled()) {
+                logger.info("Evicted {} idle connections, the pool target is {}", evicted, shrunk);
+            }
+        }
+        replenish();
+    }
+
+    private static class Connection {
+
+        private final Channel channel;
+
+        private final long since = System.nanoTime();
+
+        private Connection(Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+}
@@ -0,0 +1,43 @@
+package org.no.ppp.sos.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Priority class of a channel in the outgoing queue. The interactive channels are served ahead of the bulk ones, the
+ * class of the <code>auto</code> channels follows the size of their recent data packets.
+ */
+public enum TrafficClass {
+    AUTO,
+    INTERACTIVE,
+    BULK,
+    ;
+
+    public static TrafficClass of(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown traffic class: " + name);
+        }
+    }
+
+    /**
+     * Parses the classes of the listen ports like <code>2222=interactive,3131=bulk</code>.
+     */
+    public static Map<Integer, TrafficClass> parse(String table) {
+        Map<Integer, TrafficClass> classes = new HashMap<>();
+        for (String entry : table.split(",")) {
+            String[] parts = entry.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Illegal traffic class: " + entry);
+            }
+            try {
+                classes.put(Integer.parseInt(parts[0].trim()), of(parts[1]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal traffic class: " + entry);
+            }
+        }
+        return classes;
+    }
+
+}
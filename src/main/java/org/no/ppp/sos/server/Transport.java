@@ -0,0 +1,158 @@
+package org.no.ppp.sos.server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Netty transport of the tunneled sockets: the event loops, the channel classes and the socket options of the accepted
+ * and connected channels. The native epoll transport (edge-triggered) is used on Linux when it is available, NIO
+ * otherwise.
+ */
+public class Transport {
+
+    private final boolean epoll;
+
+    /**
+     * Threads accepting the connections, 0 to accept on the worker loops.
+     */
+    private int bossThreads;
+
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    private boolean tcpNoDelay = true;
+
+    /**
+     * Socket buffer sizes, 0 for the operating system defaults.
+     */
+    private int sendBufferSize;
+
+    private int receiveBufferSize;
+
+    private WriteBufferWaterMark writeBufferWaterMark = WriteBufferWaterMark.DEFAULT;
+
+    public Transport(boolean epoll) {
+        this.epoll = epoll;
+    }
+
+    public static Transport of(String name) {
+        switch (name) {
+            case "auto":
+                return new Transport(Epoll.isAvailable());
+            case "nio":
+                return new Transport(false);
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    throw new IllegalArgumentException("Epoll transport is not available: " + Epoll.unavailabilityCause());
+                }
+                return new Transport(true);
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public Transport setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+        return this;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public Transport setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public Transport setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public Transport setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    public Transport setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public Transport setWriteBufferWaterMark(int low, int high) {
+        this.writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+        return this;
+    }
+
+    public EventLoopGroup newGroup(int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    /**
+     * Creates the server bootstrap, the accepted channels get the socket options.
+     */
+    public ServerBootstrap serverBootstrap(EventLoopGroup parentGroup, EventLoopGroup childGroup) {
+        ServerBootstrap bootstrap = new ServerBootstrap().group(parentGroup, childGroup)
+            .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+            .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (sendBufferSize > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            // also applied to the listening socket, so the window scale of the accepted ones is negotiated for it
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize).childOption(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (epoll) {
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * Creates the client bootstrap, the connected channels get the socket options.
+     */
+    public Bootstrap bootstrap(EventLoopGroup group) {
+        Bootstrap bootstrap = new Bootstrap().group(group)
+            .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.TCP_NODELAY, tcpNoDelay)
+            .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (sendBufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+        }
+        if (epoll) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        }
+        return bootstrap;
+    }
+
+    @Override
+    public String toString() {
+        return (epoll ? "epoll" : "nio") + " [boss=" + bossThreads + ", workers=" + workerThreads + ", tcpNoDelay=" + tcpNoDelay
+            + ", sndbuf=" + sendBufferSize + ", rcvbuf=" + receiveBufferSize + ", " + writeBufferWaterMark + "]";
+    }
+
+}
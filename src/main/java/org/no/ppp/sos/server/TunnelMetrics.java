@@ -0,0 +1,297 @@
+package org.no.ppp.sos.server;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.no.ppp.sos.util.ChannelTable;
+import org.no.ppp.sos.util.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the tunnel metrics: bytes and frames per link and per channel, the depth of the outgoing queue, the time
+ * spent encoding and decoding the frames and the time the packets wait in the outgoing queue. The counters are updated
+ * by the pumps and the channel handlers, the registry is exposed through JMX and optionally as a periodic stats line.
+ */
+public class TunnelMetrics implements TunnelMetricsMBean {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+
+    private final OutgoingScheduler queue;
+
+    private final List<Link> links = new ArrayList<>();
+
+    private final ChannelTable<Channel> channels = new ChannelTable<>();
+
+    private final AtomicLong openChannels = new AtomicLong();
+
+    private final Histogram encodeTime = new Histogram();
+
+    private final Histogram decodeTime = new Histogram();
+
+    private final Histogram residenceTime = new Histogram();
+
+    private ObjectName objectName;
+
+    private ScheduledFuture<?> reportTask;
+
+    public TunnelMetrics(String name, OutgoingScheduler queue) {
+        this.name = name;
+        this.queue = queue;
+    }
+
+    public Link addLink() {
+        Link link = new Link(links.size());
+        links.add(link);
+        return link;
+    }
+
+    public Channel openChannel(int id) {
+        Channel channel = new Channel(id);
+        channels.put(id, channel);
+        openChannels.incrementAndGet();
+        return channel;
+    }
+
+    public void closeChannel(Channel channel) {
+        if (channels.remove(channel.id, channel)) {
+            openChannels.decrementAndGet();
+        }
+    }
+
+    public Histogram getEncodeHistogram() {
+        return encodeTime;
+    }
+
+    public Histogram getDecodeHistogram() {
+        return decodeTime;
+    }
+
+    public Histogram getResidenceHistogram() {
+        return residenceTime;
+    }
+
+    /**
+     * Registers the MBean as <code>org.no.ppp.sos:type=Tunnel,name=...</code>.
+     */
+    public void register() {
+        try {
+            objectName = new ObjectName("org.no.ppp.sos:type=Tunnel,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn("Unable to register the metrics: {}", e.toString());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Prints the stats line of every period to the stream, the rates and the percentiles cover the period.
+     */
+    public void startReporting(long periodMillis, PrintStream out) {
+        Link[] previous = new Link[links.size()];
+        for (int i = 0; i < previous.length; i++) {
+            previous[i] = new Link(i);
+        }
+        reportTask = scheduler.scheduleAtFixedRate(() -> out.println(report(previous, periodMillis)), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (reportTask != null) {
+            reportTask.cancel(false);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Unable to unregister the metrics: {}", e.toString());
+            }
+        }
+    }
+
+    private String report(Link[] previous, long periodMillis) {
+        StringBuilder line = new StringBuilder("stats:");
+        for (Link link : links) {
+            Link last = previous[link.index];
+            line.append(" link").append(link.index)
+                .append(" in=").append(rate(link.bytesIn.get() - last.bytesIn.get(), periodMillis)).append("/").append(link.framesIn.get() - last.framesIn.get()).append("f")
+                .append(" out=").append(rate(link.bytesOut.get() - last.bytesOut.get(), periodMillis)).append("/").append(link.framesOut.get() - last.framesOut.get()).append("f")
+                .append(" |");
+            last.bytesIn.set(link.bytesIn.get());
+            last.framesIn.set(link.framesIn.get());
+            last.bytesOut.set(link.bytesOut.get());
+            last.framesOut.set(link.framesOut.get());
+        }
+        line.append(" channels=").append(getOpenChannels())
+            .append(" queue=").append(getQueuedPackets()).append("/").append(getQueuedBytes()).append("B")
+            .append(" | residence us ").append(residenceTime.interval().format(1000))
+            .append(" | encode us ").append(encodeTime.interval().format(1000))
+            .append(" | decode us ").append(decodeTime.interval().format(1000));
+        return line.toString();
+    }
+
+    private static String rate(long bytes, long periodMillis) {
+        long perSecond = bytes * 1000 / Math.max(1, periodMillis);
+        return perSecond >= 1024 * 1024 ? perSecond / (1024 * 1024) + "MB/s" : perSecond >= 1024 ? perSecond / 1024 + "KB/s" : perSecond + "B/s";
+    }
+
+    @Override
+    public long getBytesIn() {
+        return links.stream().mapToLong(l -> l.bytesIn.get()).sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return links.stream().mapToLong(l -> l.bytesOut.get()).sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return links.stream().mapToLong(l -> l.framesIn.get()).sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return links.stream().mapToLong(l -> l.framesOut.get()).sum();
+    }
+
+    @Override
+    public int getOpenChannels() {
+        return (int) openChannels.get();
+    }
+
+    @Override
+    public int getQueuedPackets() {
+        return queue.size();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queue.getQueuedBytes();
+    }
+
+    @Override
+    public String getEncodeTime() {
+        return encodeTime.snapshot().format(1000);
+    }
+
+    @Override
+    public String getDecodeTime() {
+        return decodeTime.snapshot().format(1000);
+    }
+
+    @Override
+    public String getResidenceTime() {
+        return residenceTime.snapshot().format(1000);
+    }
+
+    @Override
+    public String[] getLinkStats() {
+        return links.stream().map(Link::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getChannelStats() {
+        List<String> stats = new ArrayList<>();
+        channels.forEach(c -> stats.add(c.toString()));
+        return stats.toArray(new String[stats.size()]);
+    }
+
+    /**
+     * Counters of one link, <code>in</code> is the stream read by the incoming pump and <code>out</code> the stream
+     * written by the outgoing one.
+     */
+    public static final class Link {
+
+        private final int index;
+
+        private final AtomicLong bytesIn = new AtomicLong();
+
+        private final AtomicLong framesIn = new AtomicLong();
+
+        private final AtomicLong bytesOut = new AtomicLong();
+
+        private final AtomicLong framesOut = new AtomicLong();
+
+        private final AtomicLong batches = new AtomicLong();
+
+        private Link(int index) {
+            this.index = index;
+        }
+
+        public void onRead(int bytes) {
+            bytesIn.addAndGet(bytes);
+        }
+
+        public void onFrameIn() {
+            framesIn.incrementAndGet();
+        }
+
+        public void onFrameOut() {
+            framesOut.incrementAndGet();
+        }
+
+        public void onBatch(int bytes) {
+            bytesOut.addAndGet(bytes);
+            batches.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "link" + index + " [bytesIn=" + bytesIn + ", framesIn=" + framesIn + ", bytesOut=" + bytesOut + ", framesOut=" + framesOut + ", batches=" + batches + "]";
+        }
+    }
+
+    /**
+     * Counters of one channel, <code>read</code> from the local socket and <code>written</code> to it.
+     */
+    public static final class Channel {
+
+        private final int id;
+
+        private final AtomicLong bytesRead = new AtomicLong();
+
+        private final AtomicLong framesRead = new AtomicLong();
+
+        private final AtomicLong bytesWritten = new AtomicLong();
+
+        private final AtomicLong framesWritten = new AtomicLong();
+
+        private Channel(int id) {
+            this.id = id;
+        }
+
+        public void onRead(int bytes) {
+            bytesRead.addAndGet(bytes);
+            framesRead.incrementAndGet();
+        }
+
+        public void onWritten(int bytes) {
+            bytesWritten.addAndGet(bytes);
+            framesWritten.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "channel" + id + " [bytesRead=" + bytesRead + ", framesRead=" + framesRead + ", bytesWritten=" + bytesWritten + ", framesWritten=" + framesWritten + "]";
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+}
@@ -0,0 +1,32 @@
+package org.no.ppp.sos.server;
+
+/**
+ * JMX view of the {@link TunnelMetrics}. The times are formatted percentiles in microseconds.
+ */
+public interface TunnelMetricsMBean {
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    int getOpenChannels();
+
+    int getQueuedPackets();
+
+    long getQueuedBytes();
+
+    String getEncodeTime();
+
+    String getDecodeTime();
+
+    String getResidenceTime();
+
+    String[] getLinkStats();
+
+    String[] getChannelStats();
+
+}
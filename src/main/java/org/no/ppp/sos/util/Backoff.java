@@ -0,0 +1,45 @@
+package org.no.ppp.sos.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Adaptive idle strategy for polling readers: spins first, then yields and finally parks for exponentially growing
+ * periods up to the limit. A parked thread can be woken up earlier with {@link LockSupport#unpark(Thread)}.
+ */
+public final class Backoff {
+
+    private static final int SPINS = 100;
+
+    private static final int YIELDS = 100;
+
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+
+    private final long maxParkNanos;
+
+    private int counter;
+
+    private long parkNanos = MIN_PARK_NANOS;
+
+    public Backoff(long maxParkNanos) {
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    public void idle() {
+        if (counter < SPINS) {
+            counter++;
+        } else if (counter < SPINS + YIELDS) {
+            counter++;
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(this, parkNanos);
+            parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+        }
+    }
+
+    public void reset() {
+        counter = 0;
+        parkNanos = MIN_PARK_NANOS;
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.no.ppp.sos.util;
+
+import java.util.BitSet;
+
+/**
+ * Allocates the lowest free channel id, so the ids stay small and short on the wire. The id 0 is reserved for the
+ * link itself.
+ */
+public final class ChannelIdAllocator {
+
+    private final BitSet used = new BitSet();
+
+    public synchronized int allocate() {
+        int id = used.nextClearBit(1);
+        used.set(id);
+        return id;
+    }
+
+    public synchronized void release(int id) {
+        used.clear(id);
+    }
+
+}
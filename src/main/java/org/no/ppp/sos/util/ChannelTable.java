@@ -0,0 +1,49 @@
+package org.no.ppp.sos.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Table of the channels indexed by their integer id. Lookups are lock free, modifications are serialized and grow the
+ * table when needed. The ids are expected to be small, see {@link ChannelIdAllocator}.
+ */
+public final class ChannelTable<V> {
+
+    private volatile AtomicReferenceArray<V> slots = new AtomicReferenceArray<>(64);
+
+    public V get(int id) {
+        AtomicReferenceArray<V> slots = this.slots;
+        return id >= 0 && id < slots.length() ? slots.get(id) : null;
+    }
+
+    public synchronized void put(int id, V value) {
+        AtomicReferenceArray<V> slots = this.slots;
+        if (id >= slots.length()) {
+            AtomicReferenceArray<V> grown = new AtomicReferenceArray<>(Math.max(id + 1, slots.length() * 2));
+            for (int i = 0; i < slots.length(); i++) {
+                grown.set(i, slots.get(i));
+            }
+            this.slots = slots = grown;
+        }
+        slots.set(id, value);
+    }
+
+    /**
+     * Removes the entry only if it is still mapped to the given value.
+     */
+    public synchronized boolean remove(int id, V value) {
+        AtomicReferenceArray<V> slots = this.slots;
+        return id >= 0 && id < slots.length() && slots.compareAndSet(id, value, null);
+    }
+
+    public void forEach(Consumer<V> consumer) {
+        AtomicReferenceArray<V> slots = this.slots;
+        for (int i = 0; i < slots.length(); i++) {
+            V value = slots.get(i);
+            if (value != null) {
+                consumer.accept(value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.no.ppp.sos.util;
+
+/**
+ * Sync policy of the output file: <code>none</code>, <code>interval:&lt;ms&gt;</code>,
+ * <code>bytes:&lt;KB&gt;</code> or <code>per-packet</code>.
+ */
+public final class Durability {
+
+    public enum Mode {
+        /**
+         * The data is left to the operating system.
+         */
+        NONE,
+        /**
+         * The data is synced every given number of milliseconds.
+         */
+        INTERVAL,
+        /**
+         * The data is synced once the given number of kilobytes is written.
+         */
+        BYTES,
+        /**
+         * Every write is synced.
+         */
+        PER_PACKET,
+        ;
+    }
+
+    private final Mode mode;
+
+    private final long value;
+
+    public Durability(Mode mode, long value) {
+        this.mode = mode;
+        this.value = value;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public static Durability of(String string) {
+        String[] parts = string.split(":", 2);
+        Mode mode;
+        try {
+            mode = Mode.valueOf(parts[0].toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown durability mode: " + parts[0]);
+        }
+        boolean valued = mode == Mode.INTERVAL || mode == Mode.BYTES;
+        if (valued != (parts.length == 2)) {
+            throw new IllegalArgumentException("Illegal durability: " + string);
+        }
+        long value = 0;
+        if (valued) {
+            try {
+                value = Long.parseLong(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal durability: " + string);
+            }
+            if (value <= 0) {
+                throw new IllegalArgumentException("Illegal durability: " + string + ", the " + (mode == Mode.INTERVAL ? "interval" : "size") + " must be positive");
+            }
+        }
+        return new Durability(mode, value);
+    }
+
+    @Override
+    public String toString() {
+        return mode.name().toLowerCase().replace('_', '-') + (mode == Mode.INTERVAL || mode == Mode.BYTES ? ":" + value : "");
+    }
+
+}
@@ -0,0 +1,245 @@
+package org.no.ppp.sos.util;
+
+import static org.no.ppp.sos.util.FecOutputStream.HEADER_LENGTH;
+import static org.no.ppp.sos.util.FecOutputStream.K_DATA;
+import static org.no.ppp.sos.util.FecOutputStream.MAGIC;
+import static org.no.ppp.sos.util.FecOutputStream.MAX_PAYLOAD_LENGTH;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Reads the frames of {@link FecOutputStream}. The data frames are returned as soon as all the previous ones are here,
+ * after a lost or corrupted frame the following ones wait for the parity of the group. Once the group can not be
+ * rebuilt, because more frames were lost than the parity covers, the frames which are here are returned without the
+ * lost ones, a layer above (e.g. {@link ReliableLink}) has to deal with the gap.
+ */
+public class FecInputStream extends InputStream {
+
+    private final InputStream in;
+
+    private final ByteBuf raw = Unpooled.buffer(65536);
+
+    private final ByteBuf delivered = Unpooled.buffer(65536);
+
+    private final Crc32c checksum = new Crc32c();
+
+    private final Map<Long, ReedSolomon> codes = new HashMap<>();
+
+    private Group current;
+
+    private final AtomicLong correctedFrames = new AtomicLong();
+
+    private final AtomicLong uncorrectableFrames = new AtomicLong();
+
+    private final AtomicLong corruptedFrames = new AtomicLong();
+
+    public FecInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (!delivered.isReadable()) {
+            raw.ensureWritable(65536);
+            if (raw.writeBytes(in, raw.writableBytes()) == -1) {
+                return -1;
+            }
+            parse();
+        }
+        int n = Math.min(len, delivered.readableBytes());
+        delivered.readBytes(b, off, n);
+        delivered.discardSomeReadBytes();
+        return n;
+    }
+
+    private void parse() {
+        while (true) {
+            while (raw.readableBytes() >= 2 && raw.getUnsignedShort(raw.readerIndex()) != MAGIC) {
+                raw.skipBytes(1);
+            }
+            if (raw.readableBytes() < HEADER_LENGTH) {
+                break;
+            }
+            int index = raw.readerIndex();
+            int length = raw.getInt(index + 10);
+            if (checksum(index, HEADER_LENGTH - 4) != raw.getInt(index + HEADER_LENGTH - 4) || length < 0 || length > MAX_PAYLOAD_LENGTH) {
+                corruptedFrames.incrementAndGet();
+                raw.skipBytes(1);
+                continue;
+            }
+            if (raw.readableBytes() < HEADER_LENGTH + length + 4) {
+                break;
+            }
+            if (checksum(index + HEADER_LENGTH, length) != raw.getInt(index + HEADER_LENGTH + length)) {
+                corruptedFrames.incrementAndGet(); // the frame is missing for the group, the parity rebuilds it
+            } else {
+                byte kind = raw.getByte(index + 2);
+                int group = raw.getInt(index + 3);
+                int shard = raw.getUnsignedByte(index + 7);
+                int dataShards = raw.getUnsignedByte(index + 8);
+                int parityShards = raw.getUnsignedByte(index + 9);
+                if (current == null || group - current.id > 0) {
+                    if (current != null) {
+                        complete(current);
+                    }
+                    current = new Group(group, parityShards);
+                }
+                if (group == current.id) {
+                    byte[] payload = new byte[length];
+                    raw.getBytes(index + HEADER_LENGTH, payload);
+                    if (kind == K_DATA) {
+                        onData(current, shard, payload);
+                    } else {
+                        onParity(current, shard, dataShards, payload);
+                    }
+                }
+            }
+            raw.skipBytes(HEADER_LENGTH + length + 4);
+        }
+        raw.discardSomeReadBytes();
+    }
+
+    private void onData(Group group, int shard, byte[] payload) {
+        if (shard >= group.data.length) {
+            group.data = Arrays.copyOf(group.data, Math.max(shard + 1, group.data.length * 2));
+        }
+        group.data[shard] = payload;
+        group.highest = Math.max(group.highest, shard);
+        deliver(group);
+    }
+
+    private void onParity(Group group, int shard, int dataShards, byte[] payload) {
+        if (group.lengths == null) {
+            group.lengths = new int[dataShards];
+            ByteBuffer.wrap(payload, 0, 4 * dataShards).asIntBuffer().get(group.lengths);
+            if (group.data.length < dataShards) {
+                group.data = Arrays.copyOf(group.data, dataShards);
+            }
+        }
+        group.parity[shard] = Arrays.copyOfRange(payload, 4 * dataShards, payload.length);
+        group.parityCount++;
+
+        int missing = 0;
+        for (int i = group.delivered; i < dataShards; i++) {
+            if (group.data[i] == null) {
+                missing++;
+            }
+        }
+        if (missing == 0 || missing > group.parityCount) {
+            return;
+        }
+        int length = group.parity[shard].length;
+        ReedSolomon code = codes.computeIfAbsent((long) dataShards << 32 | group.parity.length, k -> new ReedSolomon(dataShards, group.parity.length));
+        byte[][] data = Arrays.copyOf(group.data, dataShards);
+        code.decode(data, group.parity, length);
+        for (int i = 0; i < dataShards; i++) {
+            if (group.data[i] == null) {
+                group.data[i] = Arrays.copyOf(data[i], group.lengths[i]);
+            }
+        }
+        correctedFrames.addAndGet(missing);
+        if (logger.isInfoEnabled()) {
+            logger.info("Rebuilt {} frames of the group {}", missing, group.id);
+        }
+        deliver(group);
+    }
+
+    /**
+     * Returns the data frames which are in order.
+     */
+    private void deliver(Group group) {
+        while (group.delivered < group.data.length && group.data[group.delivered] != null) {
+            delivered.writeBytes(group.data[group.delivered]);
+            group.delivered++;
+        }
+    }
+
+    /**
+     * Gives up the group which is followed by the next one: the frames which could not be rebuilt are skipped.
+     */
+    private void complete(Group group) {
+        int total = group.lengths != null ? group.lengths.length : group.highest + 1;
+        int lost = 0;
+        for (int i = group.delivered; i < total; i++) {
+            if (i >= group.data.length || group.data[i] == null) {
+                lost++;
+            } else {
+                delivered.writeBytes(group.data[i]);
+            }
+        }
+        if (lost > 0) {
+            uncorrectableFrames.addAndGet(lost);
+            logger.warn("Lost {} frames of the group {}: {}", lost, group.id, this);
+        }
+    }
+
+    private int checksum(int index, int length) {
+        checksum.reset();
+        checksum.update(raw.array(), raw.arrayOffset() + index, length);
+        return (int) checksum.getValue();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return delivered.readableBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (logger.isInfoEnabled()) {
+            logger.info("Error correction summary: {}", this);
+        }
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FecInputStream [corrected=" + correctedFrames + ", uncorrectable=" + uncorrectableFrames + ", corrupted=" + corruptedFrames + "]";
+    }
+
+    private static class Group {
+
+        private final int id;
+
+        private byte[][] data = new byte[16][];
+
+        private final byte[][] parity;
+
+        private int parityCount;
+
+        /**
+         * Lengths of the data frames, known once any parity frame is received.
+         */
+        private int[] lengths;
+
+        private int delivered;
+
+        private int highest = -1;
+
+        private Group(int id, int parityShards) {
+            this.id = id;
+            this.parity = new byte[parityShards][];
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+}
@@ -0,0 +1,183 @@
+package org.no.ppp.sos.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forward error correction for the links where asking for the retransmission is too slow. Everything written between
+ * two flushes is sent as one data frame, every group of data frames is followed by the Reed-Solomon parity frames, so
+ * the {@link FecInputStream} rebuilds the lost or corrupted frames of the group from them. The frame layout is:
+ *
+ * <pre>
+ * short   magic
+ * byte    kind ({@link #K_DATA} or {@link #K_PARITY})
+ * int     group number
+ * byte    index of the frame in the group (among the data or parity frames)
+ * byte    number of the data frames in the group (parity only)
+ * byte    number of the parity frames in the group
+ * int     payload length
+ * int     CRC32C of the fields above
+ * bytes   payload (parity: the length of every data frame of the group followed by the parity)
+ * int     CRC32C of the payload
+ * </pre>
+ *
+ * A group is completed once it has the configured number of data frames or it is open for {@link #GROUP_LINGER_MILLIS},
+ * so a lost frame of the idle link is not kept waiting for the rest of the group.
+ */
+public class FecOutputStream extends OutputStream {
+
+    static final int MAGIC = 0xFEC0;
+
+    static final byte K_DATA = 0;
+
+    static final byte K_PARITY = 1;
+
+    static final int HEADER_LENGTH = 18;
+
+    static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private static final long GROUP_LINGER_MILLIS = 50;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fec");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream out;
+
+    private final int dataShards;
+
+    private final int parityShards;
+
+    private final ReedSolomon[] codes;
+
+    private final Crc32c checksum = new Crc32c();
+
+    private byte[] buffer = new byte[HEADER_LENGTH + 65536];
+
+    private int count = HEADER_LENGTH;
+
+    private int group;
+
+    private final byte[][] shards;
+
+    private int shardCount;
+
+    private long groupStartedAt;
+
+    private final ScheduledFuture<?> lingerTask;
+
+    public FecOutputStream(OutputStream out, int dataShards, int parityShards) {
+        this.out = out;
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.codes = new ReedSolomon[dataShards + 1];
+        this.shards = new byte[dataShards][];
+        this.lingerTask = scheduler.scheduleWithFixedDelay(this::linger, GROUP_LINGER_MILLIS, GROUP_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (count + len + 4 > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len + 4));
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (count == HEADER_LENGTH) {
+            return;
+        }
+        if (shardCount == 0) {
+            groupStartedAt = System.nanoTime();
+        }
+        shards[shardCount] = Arrays.copyOfRange(buffer, HEADER_LENGTH, count);
+        writeFrame(K_DATA, shardCount, 0, buffer, count - HEADER_LENGTH);
+        count = HEADER_LENGTH;
+        if (++shardCount == dataShards) {
+            completeGroup();
+        }
+        out.flush();
+    }
+
+    private void linger() {
+        synchronized (this) {
+            if (shardCount > 0 && System.nanoTime() - groupStartedAt >= TimeUnit.MILLISECONDS.toNanos(GROUP_LINGER_MILLIS)) {
+                try {
+                    completeGroup();
+                    out.flush();
+                } catch (IOException e) {
+                    // the stream is closed, the writer reports the problem
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the parity frames of the current group.
+     */
+    private void completeGroup() throws IOException {
+        int length = 0;
+        for (int i = 0; i < shardCount; i++) {
+            length = Math.max(length, shards[i].length);
+        }
+        ReedSolomon code = codes[shardCount];
+        if (code == null) {
+            code = codes[shardCount] = new ReedSolomon(shardCount, parityShards);
+        }
+        int offset = HEADER_LENGTH + 4 * shardCount;
+        byte[][] parity = new byte[parityShards][];
+        for (int r = 0; r < parityShards; r++) {
+            parity[r] = new byte[length];
+        }
+        code.encode(shards, parity, length);
+        for (int r = 0; r < parityShards; r++) {
+            byte[] frame = new byte[offset + length + 4];
+            ByteBuffer lengths = ByteBuffer.wrap(frame, HEADER_LENGTH, 4 * shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                lengths.putInt(shards[i].length);
+            }
+            System.arraycopy(parity[r], 0, frame, offset, length);
+            writeFrame(K_PARITY, r, shardCount, frame, offset - HEADER_LENGTH + length);
+        }
+        Arrays.fill(shards, null);
+        shardCount = 0;
+        group++;
+    }
+
+    /**
+     * Completes the frame in the buffer which has the room for the header before and the checksum after the payload.
+     */
+    private void writeFrame(byte kind, int index, int groupDataShards, byte[] frame, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(frame, 0, HEADER_LENGTH);
+        header.putShort((short) MAGIC).put(kind).putInt(group).put((byte) index).put((byte) groupDataShards).put((byte) parityShards).putInt(length);
+        checksum.reset();
+        checksum.update(frame, 0, HEADER_LENGTH - 4);
+        header.putInt((int) checksum.getValue());
+        checksum.reset();
+        checksum.update(frame, HEADER_LENGTH, length);
+        ByteBuffer.wrap(frame, HEADER_LENGTH + length, 4).putInt((int) checksum.getValue());
+        out.write(frame, 0, HEADER_LENGTH + length + 4);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lingerTask.cancel(false);
+        out.close();
+    }
+
+}
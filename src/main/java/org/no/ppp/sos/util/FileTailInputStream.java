@@ -0,0 +1,128 @@
+package org.no.ppp.sos.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tails the file which is being appended by another process. The file is kept open and the reader is woken up by the
+ * file system modification events; since such events are not delivered for every file system (network shares for
+ * instance) the reader also polls the file with the adaptive {@link Backoff}.
+ */
+public final class FileTailInputStream extends InputStream {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final FileChannel channel;
+
+    private long position = 0;
+
+    private final Backoff backoff = new Backoff(MAX_PARK_NANOS);
+
+    private volatile Thread reader;
+
+    private WatchService watchService;
+
+    public FileTailInputStream(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        Path path = file.getAbsoluteFile().toPath();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            watchService = null; // polling only
+        }
+        if (watchService != null) {
+            Thread watchThread = new Thread(() -> watch(path.getFileName()));
+            watchThread.setDaemon(true);
+            watchThread.setName("tailWatch-" + watchThread.getId());
+            watchThread.start();
+        }
+    }
+
+    private void watch(Path name) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+                        Thread thread = reader;
+                        if (thread != null) {
+                            LockSupport.unpark(thread);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            return;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        reader = Thread.currentThread();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (true) {
+                int length = channel.read(buffer, position);
+                if (length > 0) {
+                    position += length;
+                    backoff.reset();
+                    return length;
+                }
+                if (channel.size() < position) {
+                    position = 0; // the file was truncated by the restarted writer
+                    continue;
+                }
+                if (Thread.interrupted()) {
+                    return -1; // reading is finished
+                }
+                backoff.idle();
+            }
+        } catch (ClosedByInterruptException e) {
+            return -1; // reading is finished
+        } finally {
+            reader = null;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        channel.close();
+    }
+
+}
@@ -65,4 +65,27 @@ public final class FileTileInputStream extends InputStream {
         return bytes[readPosition++] & 0xFF;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (first || readPosition == bytePosition) {
+            fill();
+            first = false;
+        }
+        if (readPosition == -1) {
+            return -1;
+        }
+        int length = Math.min(len, bytePosition - readPosition);
+        System.arraycopy(bytes, readPosition, b, off, length);
+        readPosition += length;
+        return length;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return readPosition == -1 ? 0 : bytePosition - readPosition;
+    }
+
 }
\ No newline at end of file
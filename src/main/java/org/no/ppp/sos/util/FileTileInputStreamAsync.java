@@ -29,47 +29,46 @@ public final class FileTileInputStreamAsync extends InputStream {
             @Override
             public void run() {
                 try {
-                    a: while (true) {
+                    byte[] bytes = new byte[8192];
+                    while (true) {
+                        // the next chunk is read once the previous one is consumed
                         streamLock.lock();
                         try {
-                            conditionBufferRequired.await();
+                            while (buffer.isReadable()) {
+                                conditionBufferRequired.await();
+                            }
                         } finally {
                             streamLock.unlock();
                         }
-                        byte[] bytes = new byte[8192];
-                        b: while (true) {
+                        while (true) {
+                            int l;
                             try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
                                 f.seek(position);
-                                int l;
-                                while (true) {
-                                    l = f.read(bytes);
-                                    if (l > 0) {
-                                        position += l;
-                                        buffer.writeBytes(Unpooled.wrappedBuffer(bytes, 0, l));
+                                l = f.read(bytes);
+                            }
+                            if (l > 0) {
+                                position += l;
 
-                                        // unlock consumers
-                                        streamLock.lock();
-                                        try {
-                                            conditionBufferNotEmpty.signal();
-                                        } finally {
-                                            streamLock.unlock();
-                                        }
-                                        break b;
-                                    }
-                                    if (l < bytes.length) {
-                                        break;
-                                    }
+                                // unlock consumers
+                                streamLock.lock();
+                                try {
+                                    buffer.discardReadBytes();
+                                    buffer.writeBytes(bytes, 0, l);
+                                    conditionBufferNotEmpty.signal();
+                                } finally {
+                                    streamLock.unlock();
                                 }
+                                break;
                             }
-                            try {
-                                Thread.sleep(50);
-                            } catch (InterruptedException e) {
-                                break a;
-                            }
+                            Thread.sleep(50);
                         }
                     }
+                } catch (InterruptedException e) {
+                    return;
                 } catch (Throwable e) {
-                    e.printStackTrace();
+                    if (!Thread.currentThread().isInterrupted()) { // not closed meanwhile
+                        e.printStackTrace();
+                    }
                 }
             }
         });
@@ -82,11 +81,9 @@ public final class FileTileInputStreamAsync extends InputStream {
     public int read() throws IOException {
         streamLock.lock();
         try {
-            if (buffer.readableBytes() == 0) {
+            while (!buffer.isReadable()) {
                 conditionBufferRequired.signal();
-                if (buffer.readableBytes() == 0) { // check again
-                    conditionBufferNotEmpty.await();
-                }
+                conditionBufferNotEmpty.await();
             }
             return buffer.readByte() & 0xFF;
         } catch (InterruptedException e) {
@@ -95,4 +92,30 @@ public final class FileTileInputStreamAsync extends InputStream {
             streamLock.unlock();
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        streamLock.lock();
+        try {
+            while (!buffer.isReadable()) {
+                conditionBufferRequired.signal();
+                conditionBufferNotEmpty.await();
+            }
+            int length = Math.min(len, buffer.readableBytes());
+            buffer.readBytes(b, off, length);
+            return length;
+        } catch (InterruptedException e) {
+            return -1;
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchThread.interrupt();
+    }
+}
@@ -0,0 +1,92 @@
+package org.no.ppp.sos.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends to the file channel and makes the written data durable according to the {@link Durability} policy: the
+ * writes which happened since the last sync are committed together with a single {@link FileChannel#force(boolean)}.
+ */
+public final class GroupCommitOutputStream extends OutputStream {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "groupCommit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+
+    private final Durability durability;
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private ScheduledFuture<?> commitTask;
+
+    public GroupCommitOutputStream(FileChannel channel, Durability durability) {
+        this.channel = channel;
+        this.durability = durability;
+        if (durability.getMode() == Durability.Mode.INTERVAL) {
+            long interval = durability.getValue();
+            commitTask = scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    // the channel is closed, the next write reports the problem
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        pending.addAndGet(len);
+        if (durability.getMode() == Durability.Mode.PER_PACKET) {
+            commit();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (durability.getMode() == Durability.Mode.BYTES && pending.get() >= durability.getValue() * 1024) {
+            commit();
+        }
+    }
+
+    private void commit() throws IOException {
+        if (pending.getAndSet(0) > 0) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (commitTask != null) {
+            commitTask.cancel(false);
+        }
+        try {
+            if (durability.getMode() != Durability.Mode.NONE) {
+                commit();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.no.ppp.sos.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative values with log-linear buckets in the manner of HdrHistogram: every power of two
+ * is split into {@link #SUB_BUCKETS} linear buckets, so the reported values are within about 6% of the recorded ones
+ * over the whole range. Recording is a single atomic increment, the percentiles are computed from a snapshot of the
+ * counts.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Counts at the previous {@link #interval()}, guarded by this.
+     */
+    private long[] previous;
+
+    public void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    /**
+     * Returns the cumulative snapshot of the histogram.
+     */
+    public Snapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return new Snapshot(snapshot);
+    }
+
+    /**
+     * Returns the snapshot of the values recorded since the previous call.
+     */
+    public synchronized Snapshot interval() {
+        long[] current = snapshot().counts;
+        long[] interval = current.clone();
+        if (previous != null) {
+            for (int i = 0; i < BUCKETS; i++) {
+                interval[i] -= previous[i];
+            }
+        }
+        previous = current;
+        return new Snapshot(interval);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value which falls into the bucket.
+     */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the value below which the given percentage of the values falls, 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highest(i);
+                }
+            }
+            return highest(counts.length - 1);
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highest(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Formats the usual percentiles, the values are divided by the given unit (e.g. 1000 for the microseconds of
+         * the nanosecond values).
+         */
+        public String format(long unit) {
+            return "p50=" + getPercentile(50) / unit + " p99=" + getPercentile(99) / unit + " p999=" + getPercentile(99.9) / unit + " max=" + getMax() / unit;
+        }
+    }
+
+}
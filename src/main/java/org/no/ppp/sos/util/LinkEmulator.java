@@ -0,0 +1,304 @@
+package org.no.ppp.sos.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emulation of a slow and lossy link on top of the real one, so the codecs, the batching and the reliability options
+ * can be measured under the conditions of a serial line without the hardware. The settings are given as
+ * <code>baud=&lt;bits/s&gt;,delay=&lt;ms&gt;,jitter=&lt;ms&gt;,corrupt=&lt;rate&gt;,drop=&lt;rate&gt;,seed=&lt;n&gt;</code>,
+ * every key is optional:
+ *
+ * <ul>
+ * <li><code>baud</code> line speed, every byte takes 10 bits like on a 8N1 serial line, unlimited by default</li>
+ * <li><code>delay</code> one way delay added to every byte</li>
+ * <li><code>jitter</code> the delay varies by up to the given time in both directions, the bytes stay in order</li>
+ * <li><code>corrupt</code> probability of a flipped bit in a byte</li>
+ * <li><code>drop</code> probability of a lost byte</li>
+ * <li><code>seed</code> of the faults, the same seed corrupts and drops the same bytes of the same stream</li>
+ * </ul>
+ *
+ * Only the written direction is emulated, so both sides of the tunnel need the emulator to have both directions of
+ * the link affected, possibly with different settings.
+ */
+public final class LinkEmulator {
+
+    /**
+     * Bits sent for every byte: the start bit, 8 data bits and the stop bit.
+     */
+    private static final int BITS_PER_BYTE = 10;
+
+    private final long baud;
+
+    private final long delayMillis;
+
+    private final long jitterMillis;
+
+    private final double corruptRate;
+
+    private final double dropRate;
+
+    private final long seed;
+
+    public LinkEmulator(long baud, long delayMillis, long jitterMillis, double corruptRate, double dropRate, long seed) {
+        this.baud = baud;
+        this.delayMillis = delayMillis;
+        this.jitterMillis = jitterMillis;
+        this.corruptRate = corruptRate;
+        this.dropRate = dropRate;
+        this.seed = seed;
+        if (baud < 0 || delayMillis < 0 || jitterMillis < 0 || corruptRate < 0 || corruptRate > 1 || dropRate < 0 || dropRate > 1) {
+            throw new IllegalArgumentException("Illegal link emulation: " + this);
+        }
+    }
+
+    public static LinkEmulator of(String string) {
+        long baud = 0;
+        long delay = 0;
+        long jitter = 0;
+        double corrupt = 0;
+        double drop = 0;
+        long seed = 0;
+        for (String setting : string.split(",")) {
+            String[] parts = setting.split("=", 2);
+            try {
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException();
+                }
+                switch (parts[0].trim()) {
+                    case "baud":
+                        baud = Long.valueOf(parts[1].trim());
+                        break;
+                    case "delay":
+                        delay = Long.valueOf(parts[1].trim());
+                        break;
+                    case "jitter":
+                        jitter = Long.valueOf(parts[1].trim());
+                        break;
+                    case "corrupt":
+                        corrupt = Double.valueOf(parts[1].trim());
+                        break;
+                    case "drop":
+                        drop = Double.valueOf(parts[1].trim());
+                        break;
+                    case "seed":
+                        seed = Long.valueOf(parts[1].trim());
+                        break;
+                    default:
+                        throw new IllegalArgumentException();
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Illegal link emulation: " + string);
+            }
+        }
+        return new LinkEmulator(baud, delay, jitter, corrupt, drop, seed);
+    }
+
+    /**
+     * Wraps the stream of the given link, the seed of every link differs so the bonded links do not fail together.
+     */
+    public OutputStream wrap(OutputStream out, int link) {
+        return new EmulatedOutputStream(out, seed + link);
+    }
+
+    public long getBaud() {
+        return baud;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public double getCorruptRate() {
+        return corruptRate;
+    }
+
+    public double getDropRate() {
+        return dropRate;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public String toString() {
+        return "baud=" + baud + ",delay=" + delayMillis + ",jitter=" + jitterMillis + ",corrupt=" + corruptRate + ",drop=" + dropRate + ",seed=" + seed;
+    }
+
+    /**
+     * The writer is blocked while the line is busy sending its bytes, like a full UART buffer would block it. The
+     * bytes are then kept until the delay elapses and written to the real stream by the delivery thread.
+     */
+    private final class EmulatedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final Random faults;
+
+        private final Random jitter;
+
+        private final long nanosPerByte;
+
+        private final int chunkLength;
+
+        private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+
+        private final Thread thread;
+
+        private long untilCorrupt;
+
+        private long untilDrop;
+
+        private long departure;
+
+        private long lastDelivery;
+
+        private volatile IOException failure;
+
+        private EmulatedOutputStream(OutputStream out, long seed) {
+            this.out = out;
+            this.faults = new Random(seed);
+            this.jitter = new Random(~seed);
+            this.nanosPerByte = baud > 0 ? TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / baud : 0;
+            // about 10 ms of the line, so the slow line delivers the large writes gradually
+            this.chunkLength = baud > 0 ? (int) Math.max(16, Math.min(65536, baud / BITS_PER_BYTE / 100)) : 65536;
+            this.untilCorrupt = gap(corruptRate);
+            this.untilDrop = gap(dropRate);
+            this.departure = System.nanoTime();
+            this.lastDelivery = departure;
+            this.thread = new Thread(this::deliver, "link-emulator");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chunkLength);
+                send(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void send(byte[] b, int off, int len) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            byte[] data = new byte[len];
+            int count = 0;
+            for (int i = off; i < off + len; i++) {
+                byte value = b[i];
+                if (--untilDrop == 0) {
+                    untilDrop = gap(dropRate);
+                    continue;
+                }
+                if (--untilCorrupt == 0) {
+                    untilCorrupt = gap(corruptRate);
+                    value ^= 1 << faults.nextInt(8);
+                }
+                data[count++] = value;
+            }
+
+            // the lost bytes took the time of the line as well
+            long now = System.nanoTime();
+            departure = Math.max(departure, now) + len * nanosPerByte;
+            long deliverAt = departure + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (jitterMillis > 0) {
+                deliverAt += (long) ((jitter.nextDouble() * 2 - 1) * TimeUnit.MILLISECONDS.toNanos(jitterMillis));
+            }
+            lastDelivery = Math.max(Math.max(deliverAt, departure), lastDelivery);
+            queue.add(new Chunk(lastDelivery, count == len ? data : Arrays.copyOf(data, count)));
+
+            try {
+                long busy = departure - System.nanoTime();
+                if (busy > 0) {
+                    TimeUnit.NANOSECONDS.sleep(busy);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Number of the bytes until the next fault, the gaps between the faults of the given rate are geometrically
+         * distributed.
+         */
+        private long gap(double rate) {
+            if (rate <= 0) {
+                return Long.MAX_VALUE;
+            }
+            if (rate >= 1) {
+                return 1;
+            }
+            return 1 + (long) (Math.log(1 - faults.nextDouble()) / Math.log(1 - rate));
+        }
+
+        private void deliver() {
+            try {
+                while (true) {
+                    Chunk chunk = queue.take();
+                    long wait = chunk.deliverAt - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    out.write(chunk.data);
+                    Chunk next = queue.peek();
+                    if (next == null || next.deliverAt > System.nanoTime()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * The bytes still on the line are lost, like on a link going down.
+         */
+        @Override
+        public void close() throws IOException {
+            thread.interrupt();
+            out.close();
+        }
+    }
+
+    private static final class Chunk {
+
+        private final long deliverAt;
+
+        private final byte[] data;
+
+        private Chunk(long deliverAt, byte[] data) {
+            this.deliverAt = deliverAt;
+            this.data = data;
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.no.ppp.sos.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.no.ppp.sos.model.Packet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Per packet deflate compression. The compressed data is the varint length of the original data followed by the raw
+ * deflate stream. Packets which do not shrink (encrypted or already compressed data) are sent as is.
+ * <p>
+ * {@link #compress(Packet)} and {@link #decompress(Packet)} are called by the outgoing and incoming pumps
+ * respectively, each of them reuses its own deflater context and buffers. Pumps of the bonded links use their own
+ * {@link #fork()} of the compressor.
+ */
+public class PacketCompressor {
+
+    /**
+     * Smaller payloads are not worth compressing.
+     */
+    private static final int MIN_LENGTH = 64;
+
+    /**
+     * Largest original length accepted from the far side, the size of the largest binary frame. The length is read
+     * from the packet, so it is checked before the buffer is allocated.
+     */
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private final int level;
+
+    private final Deflater deflater;
+
+    private final Inflater inflater = new Inflater(true);
+
+    private byte[] deflaterInput = new byte[65536];
+
+    private byte[] deflaterOutput = new byte[65536];
+
+    private byte[] inflaterInput = new byte[65536];
+
+    private final AtomicLong compressedPackets;
+
+    private final AtomicLong skippedPackets;
+
+    private final AtomicLong bytesSaved;
+
+    private final AtomicLong malformedPackets;
+
+    public PacketCompressor(int level) {
+        this(level, new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong());
+    }
+
+    private PacketCompressor(int level, AtomicLong compressedPackets, AtomicLong skippedPackets, AtomicLong bytesSaved, AtomicLong malformedPackets) {
+        this.level = level;
+        this.deflater = new Deflater(level, true);
+        this.compressedPackets = compressedPackets;
+        this.skippedPackets = skippedPackets;
+        this.bytesSaved = bytesSaved;
+        this.malformedPackets = malformedPackets;
+    }
+
+    /**
+     * Returns the compressor with its own context and buffers which shares the statistics with this one.
+     */
+    public PacketCompressor fork() {
+        return new PacketCompressor(level, compressedPackets, skippedPackets, bytesSaved, malformedPackets);
+    }
+
+    public Packet compress(Packet packet) {
+        int length = packet.getLength();
+        if (length < MIN_LENGTH || packet.isCompressed()) {
+            return packet;
+        }
+        ByteBuf content = packet.getContent();
+        if (content.hasArray()) {
+            deflater.setInput(content.array(), content.arrayOffset() + content.readerIndex(), length);
+        } else {
+            if (deflaterInput.length < length) {
+                deflaterInput = new byte[length];
+            }
+            content.getBytes(content.readerIndex(), deflaterInput, 0, length);
+            deflater.setInput(deflaterInput, 0, length);
+        }
+        if (deflaterOutput.length < length) {
+            deflaterOutput = new byte[length];
+        }
+        ByteBuf header = Unpooled.wrappedBuffer(deflaterOutput).clear();
+        Utils.writeVarInt(header, length);
+
+        deflater.finish();
+        int n = header.writerIndex();
+        while (!deflater.finished() && n < length) {
+            n += deflater.deflate(deflaterOutput, n, length - n);
+        }
+        boolean shrunk = deflater.finished();
+        deflater.reset();
+        if (!shrunk) {
+            skippedPackets.incrementAndGet();
+            return packet;
+        }
+        byte[] compressed = new byte[n];
+        System.arraycopy(deflaterOutput, 0, compressed, 0, n);
+        compressedPackets.incrementAndGet();
+        bytesSaved.addAndGet(length - n);
+        packet.release();
+        return packet.setData(compressed).setCompressed(true);
+    }
+
+    /**
+     * Returns the packet with the original data, or <code>null</code> if the compressed data is malformed. The malformed
+     * packet is released and counted, the caller decides what happens to its channel.
+     */
+    public Packet decompress(Packet packet) {
+        if (!packet.isCompressed()) {
+            return packet;
+        }
+        ByteBuf in = packet.getContent();
+        int length = in != null ? Utils.readVarInt(in) : -1;
+        if (length < 0 || length > MAX_LENGTH) {
+            return malformed(packet, "illegal length " + length);
+        }
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+        } else {
+            if (inflaterInput.length < in.readableBytes()) {
+                inflaterInput = new byte[in.readableBytes()];
+            }
+            in.getBytes(in.readerIndex(), inflaterInput, 0, in.readableBytes());
+            inflater.setInput(inflaterInput, 0, in.readableBytes());
+        }
+        byte[] data = new byte[length];
+        try {
+            int n = 0;
+            while (n < length) {
+                int l = inflater.inflate(data, n, length - n);
+                if (l == 0 && (inflater.finished() || inflater.needsInput())) {
+                    return malformed(packet, "truncated data");
+                }
+                n += l;
+            }
+        } catch (DataFormatException e) {
+            return malformed(packet, e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+        packet.release();
+        return packet.setData(data).setCompressed(false);
+    }
+
+    private Packet malformed(Packet packet, String reason) {
+        long count = malformedPackets.incrementAndGet();
+        logger.warn("Malformed compressed packet {}: {} ({} malformed packets)", packet, reason, count);
+        packet.release();
+        return null;
+    }
+
+    public long getCompressedPackets() {
+        return compressedPackets.get();
+    }
+
+    public long getSkippedPackets() {
+        return skippedPackets.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getMalformedPackets() {
+        return malformedPackets.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PacketCompressor [compressed=" + compressedPackets + ", skipped=" + skippedPackets + ", saved=" + bytesSaved + ", malformed=" + malformedPackets + "]";
+    }
+
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+}
@@ -0,0 +1,187 @@
+package org.no.ppp.sos.util;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(256). The parity shards are computed with a Cauchy matrix, so any
+ * missing data shards can be rebuilt from the same number of parity shards. The shards may be shorter than the coded
+ * length, the missing tail is treated as zeros.
+ */
+public final class ReedSolomon {
+
+    /**
+     * The data and parity shards together are limited by the size of the field.
+     */
+    public static final int MAX_SHARDS = 256;
+
+    private static final int[] EXP = new int[512];
+
+    private static final int[] LOG = new int[256];
+
+    private static final byte[] MUL = new byte[256 * 256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= 0x11D;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                MUL[a << 8 | b] = (byte) mul(a, b);
+            }
+        }
+    }
+
+    private final int dataShards;
+
+    private final int parityShards;
+
+    private final int[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Illegal number of shards: " + dataShards + ":" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.matrix = new int[parityShards][dataShards];
+        for (int r = 0; r < parityShards; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                matrix[r][c] = inverse((dataShards + r) ^ c);
+            }
+        }
+    }
+
+    /**
+     * Computes the parity shards of the given length from the data shards.
+     */
+    public void encode(byte[][] data, byte[][] parity, int length) {
+        for (int r = 0; r < parityShards; r++) {
+            byte[] p = parity[r];
+            Arrays.fill(p, 0, length, (byte) 0);
+            for (int c = 0; c < dataShards; c++) {
+                multiplyAdd(matrix[r][c], data[c], p, Math.min(length, data[c].length));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the missing (<code>null</code>) data shards from the parity shards. Returns <code>false</code> if there
+     * are less parity shards than the missing data shards.
+     */
+    public boolean decode(byte[][] data, byte[][] parity, int length) {
+        int[] missing = new int[dataShards];
+        int e = 0;
+        for (int c = 0; c < dataShards; c++) {
+            if (data[c] == null) {
+                missing[e++] = c;
+            }
+        }
+        if (e == 0) {
+            return true;
+        }
+        int[] rows = new int[e];
+        int n = 0;
+        for (int r = 0; r < parityShards && n < e; r++) {
+            if (parity[r] != null) {
+                rows[n++] = r;
+            }
+        }
+        if (n < e) {
+            return false;
+        }
+
+        // the parity without the contribution of the present data
+        byte[][] rhs = new byte[e][];
+        for (int a = 0; a < e; a++) {
+            rhs[a] = Arrays.copyOf(parity[rows[a]], length);
+            for (int c = 0; c < dataShards; c++) {
+                if (data[c] != null) {
+                    multiplyAdd(matrix[rows[a]][c], data[c], rhs[a], Math.min(length, data[c].length));
+                }
+            }
+        }
+
+        int[][] system = new int[e][e];
+        for (int a = 0; a < e; a++) {
+            for (int b = 0; b < e; b++) {
+                system[a][b] = matrix[rows[a]][missing[b]];
+            }
+        }
+        int[][] inverse = invert(system);
+
+        for (int b = 0; b < e; b++) {
+            byte[] shard = new byte[length];
+            for (int a = 0; a < e; a++) {
+                multiplyAdd(inverse[b][a], rhs[a], shard, length);
+            }
+            data[missing[b]] = shard;
+        }
+        return true;
+    }
+
+    private static void multiplyAdd(int coefficient, byte[] source, byte[] target, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        int row = coefficient << 8;
+        for (int i = 0; i < length; i++) {
+            target[i] ^= MUL[row | source[i] & 0xFF];
+        }
+    }
+
+    /**
+     * Gauss-Jordan inversion, every square sub-matrix of the Cauchy matrix is invertible.
+     */
+    private static int[][] invert(int[][] m) {
+        int n = m.length;
+        int[][] a = new int[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(m[i], 0, a[i], 0, n);
+            a[i][n + i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot][col] == 0) {
+                pivot++;
+            }
+            int[] t = a[col];
+            a[col] = a[pivot];
+            a[pivot] = t;
+            int scale = inverse(a[col][col]);
+            for (int j = 0; j < 2 * n; j++) {
+                a[col][j] = mul(a[col][j], scale);
+            }
+            for (int i = 0; i < n; i++) {
+                int f = a[i][col];
+                if (i != col && f != 0) {
+                    for (int j = 0; j < 2 * n; j++) {
+                        a[i][j] ^= mul(f, a[col][j]);
+                    }
+                }
+            }
+        }
+        int[][] result = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(a[i], n, result[i], 0, n);
+        }
+        return result;
+    }
+
+    private static int mul(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+}
@@ -0,0 +1,542 @@
+package org.no.ppp.sos.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Reliable delivery over the stream which may corrupt data, e.g. a noisy serial line. Everything written to the
+ * {@link #getOutputStream()} between two flushes is sent as one frame:
+ *
+ * <pre>
+ * short   magic
+ * byte    kind ({@link #K_DATA}, {@link #K_ACK} or {@link #K_NAK})
+ * int     sequence number of the frame (of the corrupted frame for {@link #K_NAK})
+ * int     next sequence number expected from the far side (cumulative acknowledgement)
+ * long    frames received ahead of the expected one (selective acknowledgement, bit 0 is the next after expected)
+ * int     payload length
+ * int     CRC32C of the fields above
+ * bytes   payload
+ * int     CRC32C of the payload
+ * </pre>
+ *
+ * The frames are kept until acknowledged and are sent again once the far side reports them corrupted or missing, or
+ * they are not acknowledged within the retransmit timeout. A corrupted frame is dropped and the reader resynchronizes
+ * on the next magic, so {@link #getInputStream()} returns the intact data only and in the original order.
+ */
+public class ReliableLink {
+
+    private static final int MAGIC = 0xC35A;
+
+    private static final byte K_DATA = 0;
+
+    private static final byte K_ACK = 1;
+
+    private static final byte K_NAK = 2;
+
+    private static final int HEADER_LENGTH = 27;
+
+    /**
+     * Number of the frames which may be received ahead of the missing one, the later ones are dropped.
+     */
+    private static final int SACK_RANGE = 64;
+
+    private static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "retransmit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private final int bufferSize;
+
+    private final long timeout;
+
+    /**
+     * Guards the state shared by the reader and the writers, never held while writing.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Serializes the writes to the output stream. The reader and the retransmit task only try it, the frames they
+     * would write are sent by the current holder instead, so the reader is never blocked by the output.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final ArrayDeque<Frame> unacked = new ArrayDeque<>();
+
+    private int unackedBytes;
+
+    private int nextSeq;
+
+    private int expected;
+
+    private long received;
+
+    private final byte[][] early = new byte[SACK_RANGE][];
+
+    /**
+     * Sequence numbers of the frames received with the corrupted payload, to be reported to the far side.
+     */
+    private final ArrayDeque<Integer> naks = new ArrayDeque<>();
+
+    private volatile boolean ackPending;
+
+    private volatile boolean nakPending;
+
+    private volatile boolean retransmitPending;
+
+    private final Crc32c writerChecksum = new Crc32c();
+
+    private final Crc32c readerChecksum = new Crc32c();
+
+    private final AtomicLong corruptedFrames = new AtomicLong();
+
+    private final AtomicLong retransmittedFrames = new AtomicLong();
+
+    private final AtomicLong skippedBytes = new AtomicLong();
+
+    private final ScheduledFuture<?> retransmitTask;
+
+    private final LinkInputStream inputStream = new LinkInputStream();
+
+    private final LinkOutputStream outputStream = new LinkOutputStream();
+
+    /**
+     * @param bufferSize
+     *            amount of the sent data kept until acknowledged, the writer waits once it is exceeded
+     * @param timeout
+     *            milliseconds to wait for the acknowledgement before sending the frame again
+     */
+    public ReliableLink(InputStream in, OutputStream out, int bufferSize, long timeout) {
+        this(in, out, bufferSize, timeout, 0);
+    }
+
+    /**
+     * @param firstSeq
+     *            sequence number of the first frame, the same on both sides, the tests start close to the wraparound
+     */
+    ReliableLink(InputStream in, OutputStream out, int bufferSize, long timeout, int firstSeq) {
+        this.in = in;
+        this.out = out;
+        this.bufferSize = bufferSize;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.nextSeq = firstSeq;
+        this.expected = firstSeq;
+        long period = Math.max(1, timeout / 4);
+        this.retransmitTask = scheduler.scheduleWithFixedDelay(this::retransmit, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private void send(byte[] bytes) throws IOException {
+        Frame frame;
+        synchronized (lock) {
+            try {
+                while (unackedBytes > 0 && unackedBytes + bytes.length > bufferSize) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the acknowledgement");
+            }
+            frame = new Frame(K_DATA, nextSeq++, bytes);
+            unacked.add(frame);
+            unackedBytes += bytes.length;
+        }
+        writeLock.lock();
+        try {
+            write(frame);
+            service();
+        } finally {
+            writeLock.unlock();
+        }
+        serviceIfIdle();
+    }
+
+    /**
+     * Writes the frame with the current acknowledgement, called under the write lock.
+     */
+    private void write(Frame frame) throws IOException {
+        byte[] bytes = frame.bytes;
+        ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_LENGTH);
+        ackPending = false; // carried by this frame
+        synchronized (lock) {
+            header.putShort((short) MAGIC).put(frame.kind).putInt(frame.seq).putInt(expected).putLong(received);
+        }
+        header.putInt(bytes.length - HEADER_LENGTH - 4);
+        writerChecksum.reset();
+        writerChecksum.update(bytes, 0, HEADER_LENGTH - 4);
+        header.putInt((int) writerChecksum.getValue());
+        out.write(bytes);
+        out.flush();
+        frame.sentAt = System.nanoTime();
+    }
+
+    /**
+     * Sends the frames which are due and the pending acknowledgement, called under the write lock.
+     */
+    private void service() throws IOException {
+        List<Frame> due = new ArrayList<>();
+        List<Integer> corrupted;
+        synchronized (lock) {
+            if (retransmitPending) {
+                retransmitPending = false;
+                long now = System.nanoTime();
+                for (Frame frame : unacked) {
+                    if (isDue(frame, now)) {
+                        frame.missing = false;
+                        frame.corrupted = false;
+                        due.add(frame);
+                    }
+                }
+            }
+            nakPending = false;
+            corrupted = new ArrayList<>(naks);
+            naks.clear();
+        }
+        for (Integer seq : corrupted) {
+            write(new Frame(K_NAK, seq, new byte[HEADER_LENGTH + 4]));
+        }
+        for (Frame frame : due) {
+            retransmittedFrames.incrementAndGet();
+            write(frame);
+        }
+        if (ackPending) {
+            write(new Frame(K_ACK, 0, new byte[HEADER_LENGTH + 4]));
+        }
+    }
+
+    private void serviceIfIdle() throws IOException {
+        while ((ackPending || retransmitPending || nakPending) && writeLock.tryLock()) {
+            try {
+                service();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Handles the acknowledgement of the far side. The frames reported missing are sent again right away unless they
+     * were sent recently.
+     */
+    private void onAck(int ack, long sack) {
+        synchronized (lock) {
+            boolean released = false;
+            while (!unacked.isEmpty() && unacked.peek().seq - ack < 0) {
+                unackedBytes -= unacked.poll().bytes.length;
+                released = true;
+            }
+            if (released) {
+                lock.notifyAll();
+            }
+            if (sack == 0) {
+                return;
+            }
+            int last = SACK_RANGE - Long.numberOfLeadingZeros(sack); // the last frame received after the gap
+            for (Frame frame : unacked) {
+                int d = frame.seq - ack;
+                if (d > last) {
+                    break;
+                }
+                if (d > 0 && (sack & 1L << (d - 1)) != 0) {
+                    frame.acked = true;
+                } else {
+                    frame.missing = true;
+                    retransmitPending = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the report of the far side about the corrupted frame, it is sent again right away.
+     */
+    private void onNak(int seq) {
+        synchronized (lock) {
+            for (Frame frame : unacked) {
+                if (frame.seq == seq) {
+                    frame.corrupted = true;
+                    retransmitPending = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Frames reported missing are not sent again for a while, the report may be older than the last retransmission.
+     */
+    private boolean isDue(Frame frame, long now) {
+        long age = now - frame.sentAt;
+        return !frame.acked && (frame.corrupted || age >= timeout || frame.missing && age >= timeout / 4);
+    }
+
+    private void retransmit() {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            for (Frame frame : unacked) {
+                if (isDue(frame, now)) {
+                    retransmitPending = true;
+                    break;
+                }
+            }
+        }
+        try {
+            serviceIfIdle();
+        } catch (IOException e) {
+            // the stream is closed, the writer reports the problem
+        }
+    }
+
+    /**
+     * Accepts the payload of the data frame, called by the reader.
+     */
+    private void onData(int seq, ByteBuf buffer, int index, int length, ByteBuf delivered) {
+        synchronized (lock) {
+            int d = seq - expected;
+            if (d < 0) {
+                return; // duplicate of the frame which was not acknowledged in time
+            }
+            if (d > 0) {
+                if (d <= SACK_RANGE) {
+                    early[seq & (SACK_RANGE - 1)] = Utils.getBytes(buffer.slice(index, length));
+                    received |= 1L << (d - 1);
+                }
+                return;
+            }
+            delivered.writeBytes(buffer, index, length);
+            expected++;
+            while (true) {
+                boolean next = (received & 1) != 0;
+                received >>>= 1;
+                if (!next) {
+                    break;
+                }
+                delivered.writeBytes(early[expected & (SACK_RANGE - 1)]);
+                early[expected & (SACK_RANGE - 1)] = null;
+                expected++;
+            }
+        }
+    }
+
+    private int checksum(ByteBuf buffer, int index, int length) {
+        readerChecksum.reset();
+        readerChecksum.update(buffer.array(), buffer.arrayOffset() + index, length);
+        return (int) readerChecksum.getValue();
+    }
+
+    private static class Frame {
+
+        private final byte kind;
+
+        private final int seq;
+
+        /**
+         * The complete frame, the header is updated with the current acknowledgement on every send.
+         */
+        private final byte[] bytes;
+
+        private volatile long sentAt = System.nanoTime();
+
+        private boolean acked;
+
+        private boolean missing;
+
+        private boolean corrupted;
+
+        private Frame(byte kind, int seq, byte[] bytes) {
+            this.kind = kind;
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    private class LinkInputStream extends InputStream {
+
+        private final ByteBuf raw = Unpooled.buffer(65536);
+
+        private final ByteBuf delivered = Unpooled.buffer(65536);
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!delivered.isReadable()) {
+                raw.ensureWritable(65536);
+                if (raw.writeBytes(in, raw.writableBytes()) == -1) {
+                    return -1;
+                }
+                if (parse()) {
+                    ackPending = true;
+                }
+                serviceIfIdle();
+            }
+            int n = Math.min(len, delivered.readableBytes());
+            delivered.readBytes(b, off, n);
+            delivered.discardSomeReadBytes();
+            return n;
+        }
+
+        /**
+         * Handles the complete frames of the raw buffer. Returns <code>true</code> if any data frame was received, so
+         * the acknowledgement should be sent.
+         */
+        private boolean parse() throws IOException {
+            boolean data = false;
+            while (true) {
+                int skipped = 0;
+                while (raw.readableBytes() >= 2 && raw.getUnsignedShort(raw.readerIndex()) != MAGIC) {
+                    raw.skipBytes(1);
+                    skipped++;
+                }
+                if (skipped > 0) {
+                    skippedBytes.addAndGet(skipped);
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Skipped {} bytes to the next frame", skipped);
+                    }
+                }
+                if (raw.readableBytes() < HEADER_LENGTH) {
+                    break;
+                }
+                int index = raw.readerIndex();
+                int length = raw.getInt(index + 19);
+                if (checksum(raw, index, HEADER_LENGTH - 4) != raw.getInt(index + HEADER_LENGTH - 4)
+                    || length < 0 || length > MAX_PAYLOAD_LENGTH) {
+                    corrupted("header");
+                    raw.skipBytes(1);
+                    continue;
+                }
+                if (raw.readableBytes() < HEADER_LENGTH + length + 4) {
+                    break;
+                }
+                byte kind = raw.getByte(index + 2);
+                int seq = raw.getInt(index + 3);
+                if (checksum(raw, index + HEADER_LENGTH, length) != raw.getInt(index + HEADER_LENGTH + length)) {
+                    corrupted("payload");
+                    if (kind == K_DATA) {
+                        synchronized (lock) {
+                            naks.add(seq); // the header is intact, so the far side can be told which one
+                            nakPending = true;
+                        }
+                    }
+                    raw.skipBytes(HEADER_LENGTH + length + 4);
+                    continue;
+                }
+                onAck(raw.getInt(index + 7), raw.getLong(index + 11));
+                if (kind == K_DATA) {
+                    onData(seq, raw, index + HEADER_LENGTH, length, delivered);
+                    data = true;
+                } else if (kind == K_NAK) {
+                    onNak(seq);
+                }
+                raw.skipBytes(HEADER_LENGTH + length + 4);
+            }
+            raw.discardSomeReadBytes();
+            return data;
+        }
+
+        private void corrupted(String part) {
+            corruptedFrames.incrementAndGet();
+            if (logger.isInfoEnabled()) {
+                logger.info("Dropped the frame with corrupted {}", part);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return delivered.readableBytes();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class LinkOutputStream extends OutputStream {
+
+        private byte[] buffer = new byte[HEADER_LENGTH + 65536];
+
+        private int count = HEADER_LENGTH;
+
+        private final Crc32c checksum = new Crc32c();
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count + len + 4 > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len + 4));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > HEADER_LENGTH) {
+                checksum.reset();
+                checksum.update(buffer, HEADER_LENGTH, count - HEADER_LENGTH);
+                byte[] bytes = Arrays.copyOf(buffer, count + 4);
+                ByteBuffer.wrap(bytes, count, 4).putInt((int) checksum.getValue());
+                count = HEADER_LENGTH;
+                send(bytes);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            retransmitTask.cancel(false);
+            if (logger.isInfoEnabled()) {
+                logger.info("Link summary: {}", ReliableLink.this);
+            }
+            out.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReliableLink [corrupted=" + corruptedFrames + ", retransmitted=" + retransmittedFrames + ", skipped=" + skippedBytes + "]";
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+}
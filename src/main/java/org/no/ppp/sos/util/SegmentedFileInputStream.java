@@ -0,0 +1,93 @@
+package org.no.ppp.sos.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumer side of the segmented file transport, see {@link Segments}. A segment is complete once the next one
+ * exists, the consumer then reports the next segment in the sidecar and moves on.
+ */
+public final class SegmentedFileInputStream extends InputStream {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File base;
+
+    private long sequence = 0;
+
+    private FileChannel channel;
+
+    private long position;
+
+    private final Backoff backoff = new Backoff(MAX_PARK_NANOS);
+
+    public SegmentedFileInputStream(File base) {
+        this.base = base;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (true) {
+                if (channel == null) {
+                    File segment = Segments.segment(base, sequence);
+                    if (segment.exists()) {
+                        channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+                        position = 0;
+                        continue;
+                    }
+                } else {
+                    int length = channel.read(buffer, position);
+                    if (length > 0) {
+                        position += length;
+                        backoff.reset();
+                        return length;
+                    }
+                    if (Segments.segment(base, sequence + 1).exists()) {
+                        // the segment is complete, read whatever was appended before the next one was started
+                        length = channel.read(buffer, position);
+                        if (length > 0) {
+                            position += length;
+                            return length;
+                        }
+                        channel.close();
+                        channel = null;
+                        sequence++;
+                        Segments.writeConsumed(base, sequence);
+                        continue;
+                    }
+                }
+                if (Thread.interrupted()) {
+                    return -1; // reading is finished
+                }
+                backoff.idle();
+            }
+        } catch (ClosedByInterruptException e) {
+            return -1; // reading is finished
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.no.ppp.sos.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producer side of the segmented file transport, see {@link Segments}. At most the given number of segments exist at
+ * any time: the producer waits for the consumer before starting a new segment and deletes the consumed ones.
+ */
+public final class SegmentedFileOutputStream extends OutputStream {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final File base;
+
+    private final long segmentSize;
+
+    private final int segmentCount;
+
+    private long sequence = 0;
+
+    private long deleted = 0;
+
+    private final Durability durability;
+
+    private OutputStream channel;
+
+    private long position;
+
+    /**
+     * The segment count must be at least 2: the consumer leaves a segment only once the next one exists, so the
+     * producer must be able to start it while the previous one is still being read.
+     */
+    public SegmentedFileOutputStream(File base, long segmentSize, int segmentCount, Durability durability) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Illegal segment size: " + segmentSize);
+        }
+        if (segmentCount < 2) {
+            throw new IllegalArgumentException("Illegal segment count: " + segmentCount);
+        }
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.segmentCount = segmentCount;
+        this.durability = durability;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (channel == null) {
+            channel = open(sequence); // not earlier, the far side clears the segments on its start
+        }
+        while (len > 0) {
+            if (position == segmentSize) {
+                roll();
+            }
+            int length = (int) Math.min(len, segmentSize - position);
+            channel.write(b, off, length);
+            position += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (channel != null) {
+            channel.flush();
+        }
+    }
+
+    private void roll() throws IOException {
+        channel.close();
+        sequence++;
+
+        Backoff backoff = new Backoff(MAX_PARK_NANOS);
+        while (true) {
+            long consumed = Segments.readConsumed(base);
+            if (consumed < deleted || consumed >= sequence) {
+                consumed = deleted; // not a value of the consumer, it never goes back nor past the written segments
+            }
+            for (; deleted < consumed; deleted++) {
+                Segments.segment(base, deleted).delete();
+            }
+            if (sequence - consumed < segmentCount) {
+                break;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for the consumer");
+            }
+            backoff.idle();
+        }
+        channel = open(sequence);
+    }
+
+    private OutputStream open(long sequence) throws IOException {
+        position = 0;
+        return new GroupCommitOutputStream(FileChannel.open(Segments.segment(base, sequence).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), durability);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+}
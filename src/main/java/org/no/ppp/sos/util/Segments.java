@@ -0,0 +1,78 @@
+package org.no.ppp.sos.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Layout of the segmented file transport: the data is written to the fixed size segment files
+ * <code>&lt;base&gt;.&lt;sequence&gt;</code> and the consumer reports the segment it is reading in the
+ * <code>&lt;base&gt;.offset</code> sidecar, so the producer can delete the segments which are consumed completely.
+ */
+public final class Segments {
+
+    private Segments() {
+    }
+
+    public static File segment(File base, long sequence) {
+        return new File(base.getPath() + String.format(".%08d", sequence));
+    }
+
+    public static File sidecar(File base) {
+        return new File(base.getPath() + ".offset");
+    }
+
+    /**
+     * Deletes all segments and the sidecar of the base file. Other files sharing the name, like
+     * <code>&lt;base&gt;.csv</code>, are kept.
+     */
+    public static void clear(File base) throws IOException {
+        File directory = base.getAbsoluteFile().getParentFile();
+        Pattern owned = Pattern.compile(Pattern.quote(base.getName()) + "\\.(\\d{8,}|offset|offset\\.tmp)");
+        File[] files = directory.listFiles((d, name) -> owned.matcher(name).matches());
+        if (files == null) {
+            throw new IOException("Directory is not accessible: " + directory);
+        }
+        for (File file : files) {
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Unable to delete: " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence of the segment being read by the consumer, or 0 if it was not reported yet.
+     */
+    static long readConsumed(File base) throws IOException {
+        File sidecar = sidecar(base);
+        if (!sidecar.exists()) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            channel.read(buffer, 0);
+            return buffer.position() == 8 ? buffer.getLong(0) : 0;
+        }
+    }
+
+    /**
+     * Reports the sequence of the segment being read. The sidecar is replaced by a rename, so the producer never reads
+     * a partly written value.
+     */
+    static void writeConsumed(File base, long sequence) throws IOException {
+        File temporary = new File(base.getPath() + ".offset.tmp");
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8).putLong(0, sequence);
+            channel.write(buffer, 0);
+        }
+        Files.move(temporary.toPath(), sidecar(base).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
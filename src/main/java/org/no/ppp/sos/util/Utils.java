@@ -10,4 +10,41 @@ public class Utils {
         return bytes;
     }
 
+    public static int sizeOfVarInt(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarInt(ByteBuf buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    /**
+     * Reads unsigned variable length integer. Returns -1 and restores the reader index if the value is incomplete.
+     */
+    public static int readVarInt(ByteBuf buffer) {
+        int mark = buffer.readerIndex();
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.isReadable()) {
+                buffer.readerIndex(mark);
+                return -1;
+            }
+            int b = buffer.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed variable length integer");
+    }
+
 }
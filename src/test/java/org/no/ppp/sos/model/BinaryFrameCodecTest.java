@@ -0,0 +1,60 @@
+package org.no.ppp.sos.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class BinaryFrameCodecTest {
+
+    private final BinaryFrameCodec codec = new BinaryFrameCodec(true);
+
+    @Test
+    public void corruptFrameIsSkipped() throws IOException {
+        ByteBuf stream = Unpooled.buffer();
+        codec.encode(new Packet(1).setData(new byte[] { 1, 2, 3 }), stream);
+        int corrupt = stream.writerIndex() + 4;
+        codec.encode(new Packet(2).setData(new byte[] { 4, 5, 6 }), stream);
+        codec.encode(new Packet(3).setData(new byte[] { 7, 8, 9 }), stream);
+        stream.setByte(corrupt, stream.getByte(corrupt) ^ 0x10);
+
+        Packet first = codec.decode(stream);
+        Packet third = codec.decode(stream);
+
+        assertEquals(1, first.getId());
+        assertEquals(3, third.getId());
+        assertArrayEquals(new byte[] { 7, 8, 9 }, third.getData());
+        assertNull(codec.decode(stream));
+        assertEquals(1, codec.getCorruptFrames());
+        first.release();
+        third.release();
+        stream.release();
+    }
+
+    @Test
+    public void frameWithoutChecksumFlagIsSkipped() throws IOException {
+        ByteBuf stream = Unpooled.buffer();
+        codec.encode(new Packet(1).setData(new byte[] { 1, 2, 3 }), stream);
+        codec.encode(new Packet(2).setData(new byte[] { 4, 5, 6 }), stream);
+        stream.setByte(1, stream.getByte(1) & ~BinaryFrameCodec.F_CRC); // the flags of the first frame
+
+        Packet second = codec.decode(stream);
+
+        assertEquals(2, second.getId());
+        assertEquals(1, codec.getCorruptFrames());
+        second.release();
+        stream.release();
+    }
+
+    @Test(expected = IOException.class)
+    public void checksumFrameShorterThanChecksumIsRejected() throws IOException {
+        codec.decode(Unpooled.wrappedBuffer(new byte[] { 3, (byte) BinaryFrameCodec.F_CRC, 1, 0 }));
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.no.ppp.sos.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ForwardTest {
+
+    @Test
+    public void table() {
+        List<Forward> forwards = Forward.parse("3130->db:5432, 3131->[::1]:80");
+        assertEquals(2, forwards.size());
+        assertEquals("3130->db:5432", forwards.get(0).toString());
+        assertEquals("[::1]", forwards.get(1).getTargetHost());
+        assertEquals(80, forwards.get(1).getTargetPort());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void listenPortOutOfRangeIsRejected() {
+        Forward.parse("65536->db:5432");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void targetPortZeroIsRejected() {
+        Forward.parse("3130->db:0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateListenPortIsRejected() {
+        Forward.parse("3130->db:5432,3130->web:80");
+    }
+
+}
@@ -0,0 +1,254 @@
+package org.no.ppp.sos.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.no.ppp.sos.model.FrameCodec;
+import org.no.ppp.sos.model.Packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ResourceLeakDetector;
+
+/**
+ * Follows the buffers of the data path: the socket read, the packet in the outgoing queue, the encoding by the outgoing
+ * pump, the decoding by the incoming pump on the far side and the write to its socket. The pumps run in memory and the
+ * sockets are embedded channels. Every buffer read from the socket must be released at the end and the leak detector
+ * must not report any other buffer.
+ */
+public class HandlerBaseLeakTest {
+
+    private static final int ID = 1;
+
+    private final List<ByteBuf> reads = new ArrayList<>();
+
+    private final List<Tunnel> tunnels = new ArrayList<>();
+
+    private final Random random = new Random(1);
+
+    @BeforeClass
+    public static void paranoid() {
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+    }
+
+    @After
+    public void released() throws InterruptedException {
+        for (Tunnel tunnel : tunnels) {
+            tunnel.close();
+        }
+        for (ByteBuf read : reads) {
+            assertEquals("Read buffer is not released", 0, read.refCnt());
+        }
+        assertEquals(Collections.emptyList(), RecordingLeakDetector.collectLeaks());
+    }
+
+    @Test
+    public void binaryFrames() throws IOException {
+        transfer(new Tunnel("binary"));
+    }
+
+    @Test
+    public void jsonFrames() throws IOException {
+        transfer(new Tunnel("json"));
+    }
+
+    @Test
+    public void compressedFrames() throws IOException {
+        Tunnel tunnel = new Tunnel("binary");
+        tunnel.near.setCompression(true);
+        transfer(tunnel);
+    }
+
+    @Test
+    public void bulkDataIsSplitIntoSlices() throws IOException {
+        Tunnel tunnel = new Tunnel("binary");
+        tunnel.near.outgoingPacketQueue.setTrafficClass(ID, TrafficClass.BULK);
+        tunnel.near.setBulkFrameSize(1000);
+        transfer(tunnel);
+    }
+
+    @Test
+    public void coalescedDataIsSentAheadOfClose() throws IOException {
+        Tunnel tunnel = new Tunnel("binary");
+        tunnel.near.setCoalesceMicros(1000000);
+        EmbeddedChannel near = tunnel.open(tunnel.near);
+        EmbeddedChannel far = tunnel.open(tunnel.far);
+
+        byte[] data = bytes(100);
+        near.writeInbound(read(data));
+        near.close();
+        tunnel.pump();
+
+        assertArrayEquals(data, written(far));
+        assertFalse("Far channel is closed by CLOSE", far.isActive());
+    }
+
+    @Test
+    public void dataOfUnknownChannelIsReleased() throws IOException {
+        Tunnel tunnel = new Tunnel("binary");
+        EmbeddedChannel near = tunnel.open(tunnel.near);
+
+        near.writeInbound(read(bytes(100)), read(bytes(5000)));
+        tunnel.pump();
+
+        assertTrue(near.isActive());
+    }
+
+    @Test
+    public void malformedCompressedPacketFailsItsChannelOnly() throws IOException {
+        Tunnel tunnel = new Tunnel("binary");
+        EmbeddedChannel far = tunnel.open(tunnel.far);
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.heapBuffer(100).writeBytes(new byte[] { 100, 1, 2, 3 }); // not deflate
+        tunnel.near.outgoingPacketQueue.offer(new Packet(ID).setContent(content).setCompressed(true));
+        tunnel.near.outgoingPacketQueue.offer(new Packet(ID + 1).setType(Packet.Type.WINDOW).setData(new byte[4]));
+        tunnel.pump();
+
+        assertEquals(1, tunnel.far.compressor.getMalformedPackets());
+        assertFalse("Channel of the malformed packet is closed", far.isActive());
+        Packet error = tunnel.far.outgoingPacketQueue.poll();
+        assertEquals(Packet.Type.ERROR, error.getType());
+        error.release();
+    }
+
+    private void transfer(Tunnel tunnel) throws IOException {
+        EmbeddedChannel near = tunnel.open(tunnel.near);
+        EmbeddedChannel far = tunnel.open(tunnel.far);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int length : new int[] { 1, 100, 5000, 70000 }) {
+            byte[] data = bytes(length);
+            expected.write(data);
+            near.writeInbound(read(data));
+        }
+        tunnel.pump();
+
+        assertArrayEquals(expected.toByteArray(), written(far));
+    }
+
+    /**
+     * Returns the data half random and half repeated, so it is compressible.
+     */
+    private byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        for (int i = length / 2; i < length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        return data;
+    }
+
+    private ByteBuf read(byte[] data) {
+        ByteBuf read = PooledByteBufAllocator.DEFAULT.heapBuffer(data.length).writeBytes(data);
+        reads.add(read);
+        return read;
+    }
+
+    private static byte[] written(EmbeddedChannel channel) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuf buffer;
+        while ((buffer = channel.readOutbound()) != null) {
+            byte[] data = new byte[buffer.readableBytes()];
+            buffer.readBytes(data);
+            buffer.release();
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Both sides of the tunnel, the packets are moved from the near one to the far one by {@link #pump()}.
+     */
+    private final class Tunnel {
+
+        private final Handler near;
+
+        private final Handler far;
+
+        private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+        private Tunnel(String format) throws IOException {
+            near = new Handler(format);
+            far = new Handler(format);
+            tunnels.add(this);
+        }
+
+        private EmbeddedChannel open(Handler handler) {
+            EmbeddedChannel channel = new EmbeddedChannel(new ChannelHandlerAdapter() {
+                @Override
+                public void handlerAdded(ChannelHandlerContext ctx) {
+                    ctx.channel().attr(HandlerBase.A_ID).set(ID);
+                }
+            }, handler.createChannelHandler());
+            channels.add(channel);
+            return channel;
+        }
+
+        private void pump() throws IOException {
+            byte[] stream = near.drain();
+            far.startStreamToQueuePump(new ByteArrayInputStream(stream), far::onPacket, far.getMetrics().addLink());
+        }
+
+        /**
+         * Closes the channels and releases the packets left in the queues, like the CLOSE and WINDOW replies.
+         */
+        private void close() {
+            for (EmbeddedChannel channel : channels) {
+                channel.finishAndReleaseAll();
+            }
+            for (Handler handler : new Handler[] { near, far }) {
+                Packet packet;
+                while ((packet = handler.outgoingPacketQueue.poll()) != null) {
+                    packet.release();
+                }
+            }
+        }
+    }
+
+    private static final class Handler extends HandlerBase {
+
+        private Handler(String format) throws IOException {
+            super(Collections.emptyList(), Collections.emptyList());
+            setFrameCodec(() -> FrameCodec.of(format, true));
+        }
+
+        /**
+         * Runs the outgoing pump until the queue is empty and returns the written stream.
+         */
+        private byte[] drain() throws IOException {
+            LinkedBlockingQueue<Packet> queue = new LinkedBlockingQueue<Packet>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Packet take() throws InterruptedException {
+                    Packet packet = poll();
+                    if (packet == null) {
+                        throw new InterruptedException(); // stops the pump
+                    }
+                    return packet;
+                }
+            };
+            outgoingPacketQueue.drainTo(queue);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            startQueueToStreamPump(queue, out, getMetrics().addLink());
+            return out.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.no.ppp.sos.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.no.ppp.sos.model.Packet;
+import org.no.ppp.sos.model.Packet.Type;
+
+public class OutgoingSchedulerTest {
+
+    @Test
+    public void peekReturnsTheNextPacket() {
+        OutgoingScheduler queue = new OutgoingScheduler(1000, 1500, 10);
+        queue.setTrafficClass(2, TrafficClass.INTERACTIVE);
+        queue.setTrafficClass(3, TrafficClass.BULK);
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            if (random.nextInt(3) > 0) {
+                int id = 1 + random.nextInt(4);
+                queue.offer(random.nextInt(10) == 0 ? new Packet(id).setType(Type.WINDOW) : new Packet(id).setData(new byte[random.nextInt(3000)]));
+            } else {
+                int size = queue.size();
+                Packet next = queue.peek();
+                assertSame(next, queue.peek());
+                assertEquals(size, queue.size());
+                assertSame(next, queue.poll());
+            }
+        }
+        Packet next;
+        while ((next = queue.peek()) != null) {
+            assertSame(next, queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void windowIsServedAheadOfItsChannelData() {
+        OutgoingScheduler queue = new OutgoingScheduler(1000, 1500, 10);
+        queue.setSequencing(true);
+        Packet data = new Packet(1).setData(new byte[100]);
+        Packet close = new Packet(1).setType(Type.CLOSE);
+        Packet window = new Packet(1).setType(Type.WINDOW).setData(new byte[4]);
+        queue.offer(data);
+        queue.offer(close);
+        queue.offer(window);
+
+        assertSame(window, queue.poll());
+        assertSame(data, queue.poll());
+        assertSame(close, queue.poll());
+        // numbered in the order they are sent, so the far side keeps it
+        assertEquals(0, window.getSeq());
+        assertEquals(1, data.getSeq());
+        assertEquals(2, close.getSeq());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bulkShareOfZeroIsRejected() {
+        new OutgoingScheduler(1000, 1500, 10).setBulkShare(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quantumOfZeroIsRejected() {
+        new OutgoingScheduler(1000, 1500, 10).setQuantum(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeQuantumIsRejected() {
+        new OutgoingScheduler(-1, 1500, 10);
+    }
+
+}
@@ -0,0 +1,49 @@
+package org.no.ppp.sos.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+
+/**
+ * Leak detector of the tests, installed by the <code>io.netty.customResourceLeakDetector</code> property of the build,
+ * which keeps the reported leaks so the tests can fail on them rather than just log them.
+ */
+public class RecordingLeakDetector<T> extends ResourceLeakDetector<T> {
+
+    private static final List<String> LEAKS = new CopyOnWriteArrayList<>();
+
+    public RecordingLeakDetector(Class<?> resourceType, int samplingInterval, long maxActive) {
+        super(resourceType, samplingInterval, maxActive);
+    }
+
+    /**
+     * Collects the garbage and returns the leaks reported since the previous call. The detector checks the collected buffers when the
+     * next one is allocated, so a few buffers are allocated after every collection.
+     */
+    public static List<String> collectLeaks() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            PooledByteBufAllocator.DEFAULT.heapBuffer(1).release();
+        }
+        List<String> leaks = new ArrayList<>(LEAKS);
+        LEAKS.removeAll(leaks);
+        return leaks;
+    }
+
+    @Override
+    protected void reportTracedLeak(String resourceType, String records) {
+        LEAKS.add(resourceType + records);
+        super.reportTracedLeak(resourceType, records);
+    }
+
+    @Override
+    protected void reportUntracedLeak(String resourceType) {
+        LEAKS.add(resourceType);
+        super.reportUntracedLeak(resourceType);
+    }
+
+}
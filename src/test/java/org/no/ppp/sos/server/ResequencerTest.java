@@ -0,0 +1,106 @@
+package org.no.ppp.sos.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.no.ppp.sos.model.Packet;
+import org.no.ppp.sos.model.Packet.Type;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class ResequencerTest {
+
+    private final List<String> delivered = new ArrayList<>();
+
+    private final List<Integer> failed = new ArrayList<>();
+
+    private final Resequencer resequencer = new Resequencer(p -> {
+        delivered.add(p.getId() + ":" + p.getSeq());
+        p.release();
+    }, id -> 1000, (id, reason) -> failed.add(id));
+
+    @After
+    public void close() {
+        resequencer.close();
+    }
+
+    @Test
+    public void channelsAreOrderedSeparately() {
+        resequencer.accept(data(1, 1, 10));
+        resequencer.accept(data(2, 0, 10));
+        resequencer.accept(data(1, 2, 10));
+        assertEquals(1, delivered.size());
+        assertEquals(2, resequencer.getWaiting());
+
+        resequencer.accept(data(1, 0, 10));
+
+        assertEquals(Arrays.asList("2:0", "1:0", "1:1", "1:2"), delivered);
+        assertEquals(0, resequencer.getWaiting());
+    }
+
+    @Test
+    public void channelIsGivenUpBeyondTwiceTheWindow() {
+        ByteBuf kept = Unpooled.buffer().writeZero(900);
+        resequencer.accept(data(2, 0, 10));
+        resequencer.accept(new Packet(1).setContent(kept).setSeq(1));
+        resequencer.accept(new Packet(1).setType(Type.WINDOW).setData(new byte[4]).setSeq(2));
+        resequencer.accept(data(1, 3, 900));
+        assertTrue(failed.isEmpty());
+
+        resequencer.accept(data(1, 4, 900));
+
+        assertEquals(Arrays.asList(1), failed);
+        assertEquals(0, kept.refCnt());
+        assertEquals(Arrays.asList("2:0", "1:2"), delivered);
+        assertEquals(0, resequencer.getWaiting());
+
+        // the channel continues after the kept packets, the missing one is dropped when it comes late
+        ByteBuf late = Unpooled.buffer().writeZero(10);
+        resequencer.accept(new Packet(1).setContent(late).setSeq(0));
+        resequencer.accept(data(1, 5, 10));
+        assertEquals(0, late.refCnt());
+        assertEquals(Arrays.asList("2:0", "1:2", "1:5"), delivered);
+    }
+
+    @Test
+    public void channelIsGivenUpWhenTheMissingPacketDoesNotArrive() {
+        resequencer.accept(data(1, 1, 10));
+        resequencer.accept(data(2, 1, 10));
+        resequencer.accept(data(2, 0, 10));
+
+        resequencer.expire(System.nanoTime());
+        assertTrue(failed.isEmpty());
+
+        resequencer.expire(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Resequencer.MAX_WAIT_MILLIS + 1000));
+        assertEquals(Arrays.asList(1), failed);
+        assertEquals(0, resequencer.getWaiting());
+
+        resequencer.accept(data(1, 2, 10));
+        assertEquals(Arrays.asList("2:0", "2:1", "1:2"), delivered);
+    }
+
+    @Test
+    public void skippedPacketIsNotWaitedFor() {
+        resequencer.accept(data(1, 1, 10));
+        resequencer.skip(1, 0);
+        resequencer.skip(1, 3);
+        resequencer.accept(data(1, 2, 10));
+
+        assertEquals(Arrays.asList("1:1", "1:2"), delivered);
+        assertEquals(0, resequencer.getWaiting());
+        assertTrue(failed.isEmpty());
+    }
+
+    private static Packet data(int id, int seq, int length) {
+        return new Packet(id).setContent(Unpooled.buffer().writeZero(length)).setSeq(seq);
+    }
+
+}
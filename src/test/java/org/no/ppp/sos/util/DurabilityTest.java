@@ -0,0 +1,31 @@
+package org.no.ppp.sos.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DurabilityTest {
+
+    @Test
+    public void valuedModes() {
+        assertEquals("interval:100", Durability.of("interval:100").toString());
+        assertEquals(64, Durability.of("bytes:64").getValue());
+        assertEquals(Durability.Mode.PER_PACKET, Durability.of("per-packet").getMode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intervalOfZeroIsRejected() {
+        Durability.of("interval:0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeBytesAreRejected() {
+        Durability.of("bytes:-1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValueIsRejected() {
+        Durability.of("interval:");
+    }
+
+}
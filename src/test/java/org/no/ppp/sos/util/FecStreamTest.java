@@ -0,0 +1,160 @@
+package org.no.ppp.sos.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Writes the groups of {@link FecOutputStream}, loses some of the frames on the way and checks what
+ * {@link FecInputStream} delivers.
+ */
+public class FecStreamTest {
+
+    private static final int DATA_SHARDS = 4;
+
+    private static final int PARITY_SHARDS = 2;
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void everyCombinationOfLostFramesIsRebuilt() throws IOException, InterruptedException {
+        List<byte[]> written = new ArrayList<>();
+        List<byte[]> frames = write(written, 2 * DATA_SHARDS);
+        int groupFrames = DATA_SHARDS + PARITY_SHARDS;
+        assertEquals(2 * groupFrames, frames.size());
+
+        for (int lost = 0; lost < 1 << groupFrames; lost++) {
+            if (Integer.bitCount(lost) > PARITY_SHARDS) {
+                continue;
+            }
+            // the same frames of both groups, the last group is not followed by another one
+            long mask = lost | (long) lost << groupFrames;
+            FecInputStream in = new FecInputStream(new ByteArrayInputStream(join(frames, mask, false)));
+            assertArrayEquals("lost " + Long.toBinaryString(mask), join(written), read(in));
+        }
+    }
+
+    @Test
+    public void corruptedFramesAreRebuilt() throws IOException, InterruptedException {
+        List<byte[]> written = new ArrayList<>();
+        List<byte[]> frames = write(written, DATA_SHARDS);
+
+        for (int corrupted = 0; corrupted < frames.size(); corrupted++) {
+            for (int other = corrupted + 1; other < frames.size(); other++) {
+                FecInputStream in = new FecInputStream(new ByteArrayInputStream(join(frames, 1L << corrupted | 1L << other, true)));
+                assertArrayEquals("corrupted " + corrupted + " and " + other, join(written), read(in));
+            }
+        }
+    }
+
+    @Test
+    public void partialGroupIsCompletedAfterLinger() throws IOException, InterruptedException {
+        List<byte[]> written = new ArrayList<>();
+        List<byte[]> frames = write(written, 2);
+        assertEquals("2 data and the parity frames", 2 + PARITY_SHARDS, frames.size());
+
+        for (int lost = 0; lost < 1 << frames.size(); lost++) {
+            if (Integer.bitCount(lost) <= PARITY_SHARDS) {
+                FecInputStream in = new FecInputStream(new ByteArrayInputStream(join(frames, lost, false)));
+                assertArrayEquals("lost " + Integer.toBinaryString(lost), join(written), read(in));
+            }
+        }
+    }
+
+    @Test
+    public void uncorrectableGroupIsSkippedOnceNextGroupStarts() throws IOException, InterruptedException {
+        List<byte[]> written = new ArrayList<>();
+        List<byte[]> frames = write(written, 2 * DATA_SHARDS);
+
+        // the data frames 1 and 2 and the first parity frame of the first group
+        long lost = 1 << 1 | 1 << 2 | 1 << DATA_SHARDS;
+        FecInputStream in = new FecInputStream(new ByteArrayInputStream(join(frames, lost, false)));
+
+        List<byte[]> expected = new ArrayList<>(written);
+        expected.remove(2);
+        expected.remove(1);
+        assertArrayEquals(join(expected), read(in));
+        assertEquals("FecInputStream [corrected=0, uncorrectable=2, corrupted=0]", in.toString());
+    }
+
+    /**
+     * Writes the given number of data frames of random lengths and returns the frames sent. The groups are completed by
+     * the data frame count, the last partial group by the linger time.
+     */
+    private List<byte[]> write(List<byte[]> written, int count) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FecOutputStream fec = new FecOutputStream(out, DATA_SHARDS, PARITY_SHARDS);
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[1 + random.nextInt(2000)];
+            random.nextBytes(data);
+            written.add(data);
+            fec.write(data);
+            fec.flush();
+        }
+        if (count % DATA_SHARDS != 0) {
+            int expected = count + (count + DATA_SHARDS - 1) / DATA_SHARDS * PARITY_SHARDS;
+            for (int i = 0; i < 100 && frames(out).size() < expected; i++) {
+                Thread.sleep(20);
+            }
+        }
+        fec.close();
+        return frames(out);
+    }
+
+    private static List<byte[]> frames(ByteArrayOutputStream out) {
+        byte[] stream = out.toByteArray(); // the linger thread may be writing
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+        while (buffer.hasRemaining()) {
+            byte[] frame = new byte[FecOutputStream.HEADER_LENGTH + buffer.getInt(buffer.position() + 10) + 4];
+            buffer.get(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Joins the frames, the frames of the mask are left out or corrupted.
+     */
+    private static byte[] join(List<byte[]> frames, long mask, boolean corrupt) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i).clone();
+            if ((mask & 1L << i) != 0) {
+                if (!corrupt) {
+                    continue;
+                }
+                frame[FecOutputStream.HEADER_LENGTH] ^= 0x01;
+            }
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] join(List<byte[]> chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chunks.forEach(chunk -> out.write(chunk, 0, chunk.length));
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.no.ppp.sos.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+import org.no.ppp.sos.model.Packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class PacketCompressorTest {
+
+    private final PacketCompressor compressor = new PacketCompressor(Deflater.BEST_SPEED);
+
+    @Test
+    public void roundTrip() {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 13);
+        }
+        Packet packet = compressor.compress(new Packet(1).setData(data));
+        assertTrue(packet.isCompressed());
+
+        assertArrayEquals(data, compressor.decompress(packet).getData());
+    }
+
+    @Test
+    public void oversizedLengthIsRejected() {
+        ByteBuf content = Unpooled.buffer();
+        Utils.writeVarInt(content, Integer.MAX_VALUE);
+        content.writeBytes(new byte[] { 3, 0 }); // empty deflate stream
+
+        assertNull(compressor.decompress(new Packet(1).setContent(content).setCompressed(true)));
+        assertEquals(0, content.refCnt());
+        assertEquals(1, compressor.getMalformedPackets());
+    }
+
+    @Test
+    public void truncatedDataIsRejected() {
+        byte[] data = new byte[10000];
+        Packet packet = compressor.compress(new Packet(1).setData(data));
+        ByteBuf content = packet.getContent();
+        content.writerIndex(content.writerIndex() / 2);
+
+        assertNull(compressor.decompress(packet));
+        assertEquals(0, content.refCnt());
+        assertEquals(1, compressor.fork().getMalformedPackets());
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.no.ppp.sos.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReedSolomonTest {
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void everyCombinationOfLostShardsIsRebuilt() {
+        int[][] layouts = { { 1, 1 }, { 4, 2 }, { 5, 3 }, { 10, 4 } };
+        for (int[] layout : layouts) {
+            int dataShards = layout[0];
+            int parityShards = layout[1];
+            ReedSolomon code = new ReedSolomon(dataShards, parityShards);
+            byte[][] data = new byte[dataShards][];
+            int length = 0;
+            for (int i = 0; i < dataShards; i++) {
+                data[i] = new byte[1 + random.nextInt(300)]; // the shorter shards are padded with zeros
+                random.nextBytes(data[i]);
+                length = Math.max(length, data[i].length);
+            }
+            byte[][] parity = new byte[parityShards][length];
+            code.encode(data, parity, length);
+
+            int shards = dataShards + parityShards;
+            for (int lost = 0; lost < 1 << shards; lost++) {
+                if (Integer.bitCount(lost) > parityShards) {
+                    continue;
+                }
+                byte[][] received = new byte[dataShards][];
+                byte[][] receivedParity = new byte[parityShards][];
+                for (int i = 0; i < shards; i++) {
+                    if ((lost & 1 << i) == 0) {
+                        if (i < dataShards) {
+                            received[i] = data[i];
+                        } else {
+                            receivedParity[i - dataShards] = parity[i - dataShards];
+                        }
+                    }
+                }
+
+                assertTrue(code.decode(received, receivedParity, length));
+                for (int i = 0; i < dataShards; i++) {
+                    String message = dataShards + ":" + parityShards + " lost " + Integer.toBinaryString(lost) + " shard " + i;
+                    assertArrayEquals(message, data[i], Arrays.copyOf(received[i], data[i].length));
+                    assertArrayEquals(message, new byte[received[i].length - data[i].length], Arrays.copyOfRange(received[i], data[i].length, received[i].length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void moreLostShardsThanParityAreNotRebuilt() {
+        ReedSolomon code = new ReedSolomon(4, 2);
+        byte[][] data = new byte[4][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new byte[100];
+            random.nextBytes(data[i]);
+        }
+        byte[][] parity = new byte[2][100];
+        code.encode(data, parity, 100);
+
+        assertFalse(code.decode(new byte[][] { null, data[1], null, data[3] }, new byte[][] { parity[0], null }, 100));
+    }
+
+}
@@ -0,0 +1,243 @@
+package org.no.ppp.sos.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs two ends of the link over the in-memory pipes which corrupt and lose the frames, every message must arrive
+ * exactly once and in order.
+ */
+public class ReliableLinkTest {
+
+    private static final long TIMEOUT = 100;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 60000)
+    public void lossyLinkDeliversInOrder() throws Exception {
+        exchange(0, 1000);
+    }
+
+    @Test(timeout = 60000)
+    public void sequenceNumbersWrapAround() throws Exception {
+        exchange(Integer.MAX_VALUE - 200, 500);
+    }
+
+    @Test(timeout = 60000)
+    public void readerResynchronizesAfterCorruptedHeader() throws Exception {
+        // the writes of the sending side: the frames 2, 4 and 6 of the data, before any retransmission
+        Pipe forward = new Pipe((index, frame) -> {
+            switch (index) {
+                case 2:
+                    frame[5] ^= 0x40; // the sequence number, the header checksum fails
+                    return frame;
+                case 4:
+                    return null;
+                case 6:
+                    frame[frame.length - 10] ^= 0x01; // the payload, reported corrupted
+                    return frame;
+                default:
+                    return frame;
+            }
+        });
+        Pipe backward = new Pipe((index, frame) -> frame);
+        ReliableLink sender = new ReliableLink(backward.in, forward.out, 1 << 20, TIMEOUT);
+        ReliableLink receiver = new ReliableLink(forward.in, backward.out, 1 << 20, TIMEOUT);
+        executor.submit(() -> drain(sender.getInputStream()));
+
+        List<byte[]> messages = messages(new Random(3), 20);
+        Future<byte[]> received = receive(receiver.getInputStream(), length(messages));
+        send(sender.getOutputStream(), messages);
+
+        assertArrayEquals(join(messages), received.get());
+        assertTrue(receiver.toString(), counter(receiver, "corrupted") >= 2);
+        assertTrue(receiver.toString(), counter(receiver, "skipped") > 0);
+        assertTrue(sender.toString(), counter(sender, "retransmitted") >= 3);
+    }
+
+    /**
+     * Sends the messages both ways at once over the emulated noisy line, the seeds fix the corrupted and lost bytes.
+     */
+    private void exchange(int firstSeq, int count) throws Exception {
+        LinkEmulator emulator = LinkEmulator.of("corrupt=0.0005,drop=0.0002,seed=7");
+        Pipe forward = new Pipe((index, frame) -> frame);
+        Pipe backward = new Pipe((index, frame) -> frame);
+        ReliableLink a = new ReliableLink(backward.in, emulator.wrap(forward.out, 0), 1 << 16, TIMEOUT, firstSeq);
+        ReliableLink b = new ReliableLink(forward.in, emulator.wrap(backward.out, 1), 1 << 16, TIMEOUT, firstSeq);
+
+        List<byte[]> toB = messages(new Random(1), count);
+        List<byte[]> toA = messages(new Random(2), count);
+        Future<byte[]> atB = receive(b.getInputStream(), length(toB));
+        Future<byte[]> atA = receive(a.getInputStream(), length(toA));
+        Future<?> sentToA = executor.submit(() -> {
+            send(b.getOutputStream(), toA);
+            return null;
+        });
+        send(a.getOutputStream(), toB);
+        sentToA.get();
+
+        assertArrayEquals(join(toB), atB.get());
+        assertArrayEquals(join(toA), atA.get());
+        assertTrue(b.toString(), counter(b, "corrupted") > 0);
+        assertTrue(a.toString(), counter(a, "retransmitted") > 0);
+    }
+
+    private static List<byte[]> messages(Random random, int count) {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[1 + random.nextInt(600)];
+            random.nextBytes(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void send(OutputStream out, List<byte[]> messages) throws IOException {
+        for (byte[] message : messages) {
+            out.write(message);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads the given amount of data and keeps reading, the acknowledgements of the far side are handled by the reader.
+     */
+    private Future<byte[]> receive(InputStream in, int length) {
+        return executor.submit(() -> {
+            byte[] data = read(in, length);
+            executor.submit(() -> drain(in));
+            return data;
+        });
+    }
+
+    private static byte[] read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int read = in.read(data, n, length - n);
+            if (read == -1) {
+                throw new IOException("Closed after " + n + " bytes");
+            }
+            n += read;
+        }
+        return data;
+    }
+
+    private static Void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer, 0, buffer.length) != -1) {
+            // the acknowledgements only
+        }
+        return null;
+    }
+
+    private static int length(List<byte[]> messages) {
+        return messages.stream().mapToInt(m -> m.length).sum();
+    }
+
+    private static byte[] join(List<byte[]> messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        messages.forEach(m -> out.write(m, 0, m.length));
+        return out.toByteArray();
+    }
+
+    private static long counter(ReliableLink link, String name) {
+        Matcher matcher = Pattern.compile(name + "=(\\d+)").matcher(link.toString());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /**
+     * In-memory pipe which passes every write through the fault, which may change the bytes or lose them by returning
+     * <code>null</code>. The link writes every frame with a single write.
+     */
+    private static final class Pipe {
+
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+
+        private final OutputStream out;
+
+        private final InputStream in;
+
+        private Pipe(BiFunction<Integer, byte[], byte[]> fault) {
+            out = new OutputStream() {
+                private int writes;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public synchronized void write(byte[] b, int off, int len) throws IOException {
+                    byte[] chunk = fault.apply(writes++, Arrays.copyOfRange(b, off, off + len));
+                    if (chunk != null) {
+                        chunks.add(chunk);
+                    }
+                }
+            };
+            in = new InputStream() {
+                private byte[] chunk = new byte[0];
+
+                private int position;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    while (position == chunk.length) {
+                        byte[] next;
+                        try {
+                            next = chunks.poll(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            return -1;
+                        }
+                        if (next == null) {
+                            return -1;
+                        }
+                        chunk = next;
+                        position = 0;
+                    }
+                    int n = Math.min(len, chunk.length - position);
+                    System.arraycopy(chunk, position, b, off, n);
+                    position += n;
+                    return n;
+                }
+            };
+        }
+    }
+
+}
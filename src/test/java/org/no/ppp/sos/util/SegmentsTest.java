@@ -0,0 +1,62 @@
+package org.no.ppp.sos.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sidecarIsReplaced() throws IOException {
+        File base = new File(folder.getRoot(), "o");
+        Segments.writeConsumed(base, 3);
+        Segments.writeConsumed(base, 4);
+
+        assertEquals(4, Segments.readConsumed(base));
+        assertArrayEquals(new String[] { "o.offset" }, folder.getRoot().list());
+    }
+
+    @Test
+    public void consumedPastTheProducerIsIgnored() throws IOException {
+        File base = new File(folder.getRoot(), "o");
+        Segments.writeConsumed(base, 1000); // like a torn read of the sidecar
+        try (SegmentedFileOutputStream out = new SegmentedFileOutputStream(base, 4, 2, Durability.of("none"))) {
+            out.write(new byte[6]);
+        }
+
+        assertTrue(Segments.segment(base, 0).exists());
+        assertEquals(2, Files.size(Segments.segment(base, 1).toPath()));
+    }
+
+    @Test
+    public void clearKeepsOtherFiles() throws IOException {
+        File base = new File(folder.getRoot(), "o");
+        Segments.writeConsumed(base, 1);
+        assertTrue(Segments.segment(base, 0).createNewFile());
+        assertTrue(new File(folder.getRoot(), "o.offset.tmp").createNewFile());
+        assertTrue(new File(folder.getRoot(), "o.csv").createNewFile());
+
+        Segments.clear(base);
+
+        assertArrayEquals(new String[] { "o.csv" }, folder.getRoot().list());
+        assertFalse(Segments.sidecar(base).exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void singleSegmentIsRejected() {
+        new SegmentedFileOutputStream(new File(folder.getRoot(), "o"), 4, 1, Durability.of("none"));
+    }
+
+}